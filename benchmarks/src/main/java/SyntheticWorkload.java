@@ -0,0 +1,138 @@
+/*
+ * Workload for the JMH benchmarks, on data from SyntheticFeatureData (see pcaknn.benchmarks.Workload).
+ *
+ * @author Scott Weaver
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import Jama.Matrix;
+import pcaknn.benchmarks.Workload;
+
+public class SyntheticWorkload extends Workload {
+	private static int K_VALUE = 1;
+	//caps the test set, which the component sweep classifies once per component
+	private static int MAX_TEST_DATA = 1000;
+
+	private ForkJoinPool pool;
+	private FeatureMatrix trainingData;
+	private ClassLabels trainingClassification;
+	private FeatureMatrix testData;
+	private ClassLabels testClassification;
+	private File csvFile;
+	private File binaryFile;
+
+	private double[][] covarianceMatrix;
+	private Matrix eigenVectors;
+	private FeatureMatrix projectedTestData;
+	private NeighborIndex bruteForceIndex;
+	private NeighborIndex neighborIndex;
+	private TopKSelector selector;
+
+	@Override
+	protected void setUp(int numRows, int numFeatures, int numClasses) throws IOException {
+		pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+		ClassDictionary dictionary = new ClassDictionary();
+		trainingData = new FeatureMatrix();
+		trainingClassification = new ClassLabels(dictionary);
+		testData = new FeatureMatrix();
+		testClassification = new ClassLabels(dictionary);
+		String columnHeaders = SyntheticFeatureData.generate(numRows, numFeatures, numClasses, 0, 1, trainingData, trainingClassification);
+		SyntheticFeatureData.generate(Math.max(1, Math.min(MAX_TEST_DATA, numRows / 4)), numFeatures, numClasses, 0, 2, testData, testClassification);
+
+		csvFile = File.createTempFile("training_data", ".csv");
+		binaryFile = File.createTempFile("training_data", ".bin");
+		SyntheticFeatureData.writeCsv(csvFile.getPath(), columnHeaders, trainingData, trainingClassification);
+		BinaryFeatureFile.write(binaryFile.getPath(), columnHeaders, trainingData, trainingClassification, false);
+
+		covarianceMatrix = Utilities.getCovarianceAccumulator(trainingData, numFeatures, pool).getCovarianceMatrix();
+		eigenVectors = new PcaModel(covarianceMatrix).getEigenvectorMatrix(numFeatures);
+		FeatureMatrix projectedTrainingData = Utilities.calculatePCA(trainingData, eigenVectors);
+		projectedTestData = Utilities.calculatePCA(testData, eigenVectors);
+
+		bruteForceIndex = new BruteForceIndex(trainingData);
+		//the neighbor index is chosen as in PcaKnn
+		if (numFeatures <= PcaKnn.KD_TREE_MAX_DIMENSIONS) {
+			neighborIndex = new KdTree(projectedTrainingData);
+		} else {
+			neighborIndex = new BruteForceIndex(projectedTrainingData);
+		}
+		selector = new TopKSelector(K_VALUE);
+	}
+
+	@Override
+	public void tearDown() {
+		csvFile.delete();
+		binaryFile.delete();
+		pool.shutdown();
+	}
+
+	@Override
+	public int getNumTestData() {
+		return testData.getNumRows();
+	}
+
+	@Override
+	public Object loadCsv() throws IOException {
+		FeatureMatrix featureData = new FeatureMatrix();
+		FeatureFileReader.read(csvFile.getPath(), featureData, new ClassLabels(new ClassDictionary()));
+		return featureData;
+	}
+
+	@Override
+	public Object loadBinary() throws IOException {
+		FeatureMatrix featureData = new FeatureMatrix();
+		BinaryFeatureFile.read(binaryFile.getPath(), featureData, new ClassLabels(new ClassDictionary()));
+		return featureData;
+	}
+
+	@Override
+	public Object covariance() {
+		return Utilities.getCovarianceAccumulator(trainingData, trainingData.getNumColumns(), pool).getCovarianceMatrix();
+	}
+
+	@Override
+	public Object eigenDecomposition() {
+		return new PcaModel(covarianceMatrix);
+	}
+
+	@Override
+	public Object projection() {
+		return Utilities.calculatePCA(trainingData, eigenVectors);
+	}
+
+	@Override
+	public int bruteForceQuery(int i) {
+		bruteForceIndex.search(testData.getData(), testData.getRowOffset(i), selector);
+		return selector.getIndex(0);
+	}
+
+	@Override
+	public int indexQuery(int i) {
+		neighborIndex.search(projectedTestData.getData(), projectedTestData.getRowOffset(i), selector);
+		return selector.getIndex(0);
+	}
+
+	@Override
+	public int componentSweep() {
+		int numFeatures = trainingData.getNumColumns();
+		CovarianceAccumulator accumulator = Utilities.getCovarianceAccumulator(trainingData, numFeatures, pool);
+		Matrix sweepEigenVectors = new PcaModel(accumulator.getCovarianceMatrix()).getEigenvectorMatrix(numFeatures);
+		FeatureMatrix projectedTrainingData = Utilities.calculatePCA(trainingData, sweepEigenVectors);
+		FeatureMatrix sweepTestData = Utilities.calculatePCA(testData, sweepEigenVectors);
+
+		int[] columnOrder = new int[numFeatures];
+		for (int i = 0; i < numFeatures; i++) {
+			columnOrder[i] = i;
+		}
+		BatchClassifier.Result[] results = new PrefixDistanceSweep(projectedTrainingData, trainingClassification, columnOrder, K_VALUE, pool).classify(sweepTestData, testClassification);
+
+		int count = 0;
+		for (BatchClassifier.Result result : results) {
+			count += result.count;
+		}
+		return count;
+	}
+}
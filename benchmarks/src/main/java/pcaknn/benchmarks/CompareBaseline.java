@@ -0,0 +1,136 @@
+/*
+ * Compares two JMH result files written with -rf csv, such as a saved baseline and the current build, and reports
+ * every benchmark that got slower by more than the threshold. Benchmarks are matched on their name, mode and
+ * parameters. A slowdown within the combined error of the two scores is noise, not a regression.
+ * Exits with status 1 if anything regressed, so it can fail a build.
+ *
+ * Usage: CompareBaseline baseline.csv current.csv [threshold]
+ * threshold is a fraction, 0.1 (10%) by default.
+ *
+ * @author Scott Weaver
+ */
+package pcaknn.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CompareBaseline {
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: CompareBaseline baseline.csv current.csv [threshold]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+
+		Map<String, double[]> baseline;
+		Map<String, double[]> current;
+		try {
+			baseline = readResults(args[0]);
+			current = readResults(args[1]);
+		} catch (IOException e) {
+			System.err.println("Cannot read benchmark results. " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+
+		int numRegressions = 0;
+		System.out.println("Benchmark,Baseline,Current,Change");
+		for (Map.Entry<String, double[]> entry : current.entrySet()) {
+			double[] before = baseline.get(entry.getKey());
+			if (before == null) {
+				System.out.println(entry.getKey() + ",," + entry.getValue()[0] + ",new");
+				continue;
+			}
+			double[] after = entry.getValue();
+
+			//throughput modes are better when higher, time modes when lower
+			double change = (after[0] - before[0]) / before[0];
+			boolean higherIsBetter = after[2] > 0;
+			double slowdown = higherIsBetter ? -change : change;
+			boolean regressed = slowdown > threshold && Math.abs(after[0] - before[0]) > after[1] + before[1];
+			if (regressed) {
+				numRegressions++;
+			}
+			System.out.println(entry.getKey() + "," + before[0] + "," + after[0] + "," + String.format("%+.1f%%", 100 * change) + (regressed ? ",REGRESSION" : ""));
+		}
+
+		System.out.println(numRegressions + " regression(s) over " + String.format("%.0f%%", 100 * threshold));
+		System.exit(numRegressions > 0 ? 1 : 0);
+	}
+
+	//Maps "benchmark mode param=value ..." to {score, score error, 1 if higher is better else 0}.
+	private static Map<String, double[]> readResults(String resultFilePath) throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(resultFilePath), StandardCharsets.UTF_8);
+		if (lines.isEmpty()) {
+			throw new IOException(resultFilePath + ": empty result file");
+		}
+
+		List<String> header = splitCsvLine(lines.get(0));
+		int benchmarkColumn = header.indexOf("Benchmark");
+		int modeColumn = header.indexOf("Mode");
+		int scoreColumn = header.indexOf("Score");
+		int errorColumn = header.indexOf("Score Error (99.9%)");
+		if (benchmarkColumn < 0 || modeColumn < 0 || scoreColumn < 0) {
+			throw new IOException(resultFilePath + ": not a JMH CSV result file");
+		}
+
+		Map<String, double[]> results = new LinkedHashMap<>();
+		for (int i = 1; i < lines.size(); i++) {
+			if (lines.get(i).isEmpty()) {
+				continue;
+			}
+			List<String> cells = splitCsvLine(lines.get(i));
+			StringBuilder key = new StringBuilder(cells.get(benchmarkColumn) + " " + cells.get(modeColumn));
+			for (int column = 0; column < header.size(); column++) {
+				if (header.get(column).startsWith("Param: ") && column < cells.size()) {
+					key.append(" " + header.get(column).substring("Param: ".length()) + "=" + cells.get(column));
+				}
+			}
+			try {
+				double score = Double.parseDouble(cells.get(scoreColumn).replace(',', '.'));
+				//single-shot runs and runs of one iteration have no error
+				double error = 0.0;
+				if (errorColumn >= 0 && !cells.get(errorColumn).isEmpty() && !cells.get(errorColumn).equals("NaN")) {
+					error = Double.parseDouble(cells.get(errorColumn).replace(',', '.'));
+				}
+				double higherIsBetter = cells.get(modeColumn).equals("thrpt") ? 1 : 0;
+				results.put(key.toString(), new double[] {score, error, higherIsBetter});
+			} catch (NumberFormatException e) {
+				throw new IOException(resultFilePath + ":" + (i + 1) + ": score is not a number: " + e.getMessage());
+			}
+		}
+		return results;
+	}
+
+	//Splits a CSV line on commas outside of double quotes and removes the quotes.
+	private static List<String> splitCsvLine(String line) {
+		List<String> cells = new ArrayList<>();
+		StringBuilder cell = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					cell.append('"');
+					i++;
+				} else {
+					quoted = !quoted;
+				}
+			} else if (c == ',' && !quoted) {
+				cells.add(cell.toString());
+				cell.setLength(0);
+			} else {
+				cell.append(c);
+			}
+		}
+		cells.add(cell.toString());
+		return cells;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * JMH benchmarks of the PCA + KNN hot paths: loading feature files, covariance, eigendecomposition, projection,
+ * single KNN queries and the full component sweep of PcaKnn, on synthetic data with the shape of the files in Data.
+ * Each combination of rows, features and classes is a separate data set; override them with -p, for example
+ * -p rows=200000 -p features=14.
+ *
+ * @author Scott Weaver
+ */
+package pcaknn.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcaKnnBenchmarks {
+
+	@Param({"2000", "20000"})
+	public int rows;
+
+	@Param({"14", "64"})
+	public int features;
+
+	@Param({"3"})
+	public int classes;
+
+	private Workload workload;
+	//test row of the next query, so the queries do not all hit the same cache lines
+	private int nextQuery;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		workload = Workload.create(rows, features, classes);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		workload.tearDown();
+	}
+
+	private int nextQuery() {
+		int query = nextQuery;
+		nextQuery = query + 1 == workload.getNumTestData() ? 0 : query + 1;
+		return query;
+	}
+
+	@Benchmark
+	public Object loadCsv() throws IOException {
+		return workload.loadCsv();
+	}
+
+	@Benchmark
+	public Object loadBinary() throws IOException {
+		return workload.loadBinary();
+	}
+
+	@Benchmark
+	public Object covariance() {
+		return workload.covariance();
+	}
+
+	@Benchmark
+	public Object eigenDecomposition() {
+		return workload.eigenDecomposition();
+	}
+
+	@Benchmark
+	public Object projection() {
+		return workload.projection();
+	}
+
+	@Benchmark
+	public int bruteForceQuery() {
+		return workload.bruteForceQuery(nextQuery());
+	}
+
+	@Benchmark
+	public int indexQuery() {
+		return workload.indexQuery(nextQuery());
+	}
+
+	@Benchmark
+	public int componentSweep() {
+		return workload.componentSweep();
+	}
+}
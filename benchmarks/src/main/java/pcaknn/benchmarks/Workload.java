@@ -0,0 +1,54 @@
+/*
+ * The operations measured by PcaKnnBenchmarks, on one synthetic data set.
+ * JMH does not accept benchmarks in the default package, and a class in a named package cannot refer to the
+ * classifier's classes in the default package, so the benchmarks call the classifier through this class. The
+ * implementation, SyntheticWorkload, is in the default package and is loaded by name. Calls through it are
+ * monomorphic, so the JIT inlines them and the benchmarks measure the same code as the classifier runs.
+ *
+ * @author Scott Weaver
+ */
+package pcaknn.benchmarks;
+
+import java.io.IOException;
+
+public abstract class Workload {
+
+	//Generates numRows training rows and numRows / 4 test rows (at most 1000) with numFeatures features in numClasses classes.
+	public static Workload create(int numRows, int numFeatures, int numClasses) throws Exception {
+		Workload workload = (Workload) Class.forName("SyntheticWorkload").getDeclaredConstructor().newInstance();
+		workload.setUp(numRows, numFeatures, numClasses);
+		return workload;
+	}
+
+	protected abstract void setUp(int numRows, int numFeatures, int numClasses) throws Exception;
+
+	//Deletes the feature files written by setUp and stops the thread pool.
+	public abstract void tearDown();
+
+	public abstract int getNumTestData();
+
+	//Reads the training set from its CSV file.
+	public abstract Object loadCsv() throws IOException;
+
+	//Reads the training set from its binary feature file.
+	public abstract Object loadBinary() throws IOException;
+
+	//Covariance matrix of the training set.
+	public abstract Object covariance();
+
+	//Eigendecomposition of the training set's covariance matrix.
+	public abstract Object eigenDecomposition();
+
+	//Projection of the training set onto every principal component.
+	public abstract Object projection();
+
+	//Nearest neighbor of test row i by a linear scan. Returns its training index.
+	public abstract int bruteForceQuery(int i);
+
+	//Nearest neighbor of test row i in the projected data through the index PcaKnn would pick. Returns its training index.
+	public abstract int indexQuery(int i);
+
+	//The whole component test of PcaKnn: covariance, decomposition, projection and a KNN sweep over every number of
+	//components. Returns the total number of correct classifications.
+	public abstract int componentSweep();
+}
@@ -0,0 +1,58 @@
+/*
+ * DistanceKernel using explicit SIMD from jdk.incubator.vector, at the preferred vector width of the machine.
+ * Kept out of src because it only compiles with --add-modules jdk.incubator.vector:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp bin -d bin src-vector/VectorDistanceKernel.java
+ *
+ * and is only used when the JVM is also started with --add-modules jdk.incubator.vector.
+ *
+ * @author Scott Weaver
+ */
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorDistanceKernel extends DistanceKernel {
+	private static final VectorSpecies<Double> DOUBLE_SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	@Override
+	public String getName() {
+		return "vector";
+	}
+
+	@Override
+	public double squaredDistance(double[] a, int offsetA, double[] b, int offsetB, int n) {
+		DoubleVector sums = DoubleVector.zero(DOUBLE_SPECIES);
+		int i = 0;
+		for (int bound = DOUBLE_SPECIES.loopBound(n); i < bound; i += DOUBLE_SPECIES.length()) {
+			DoubleVector diff = DoubleVector.fromArray(DOUBLE_SPECIES, a, offsetA + i).sub(DoubleVector.fromArray(DOUBLE_SPECIES, b, offsetB + i));
+			sums = diff.fma(diff, sums);
+		}
+
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < n; i++) {
+			double diff = a[offsetA + i] - b[offsetB + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public float squaredDistance(float[] a, int offsetA, float[] b, int offsetB, int n) {
+		FloatVector sums = FloatVector.zero(FLOAT_SPECIES);
+		int i = 0;
+		for (int bound = FLOAT_SPECIES.loopBound(n); i < bound; i += FLOAT_SPECIES.length()) {
+			FloatVector diff = FloatVector.fromArray(FLOAT_SPECIES, a, offsetA + i).sub(FloatVector.fromArray(FLOAT_SPECIES, b, offsetB + i));
+			sums = diff.fma(diff, sums);
+		}
+
+		float sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < n; i++) {
+			float diff = a[offsetA + i] - b[offsetB + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+}
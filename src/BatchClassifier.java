@@ -0,0 +1,168 @@
+/*
+ * Classifies a whole test set with KNN in parallel.
+ * The test set is split into ranges with fork/join. Each range gets its own TopKSelector and vote counts, writes its
+ * predictions into its own slots of the result arrays and returns its count of correct classifications, which are
+ * summed as the tasks are joined. Nothing is shared between workers except the read-only neighbor index, so the results
+ * are the same for any number of threads.
+ *
+ * @author Scott Weaver
+ */
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class BatchClassifier {
+	//test points per task; large enough to amortize the task overhead, small enough to balance the load
+	private static int BATCH_SIZE = 64;
+
+	private final NeighborIndex neighborIndex;
+	private final ClassLabels trainingClassification;
+	private final int k;
+	private final ForkJoinPool pool;
+
+	public BatchClassifier(NeighborIndex neighborIndex, ClassLabels trainingClassification, int k, ForkJoinPool pool) {
+		this.neighborIndex = neighborIndex;
+		this.trainingClassification = trainingClassification;
+		this.k = k;
+		this.pool = pool;
+	}
+
+	public static class Result {
+		//predicted classification id of each test point
+		public final int[] predictedClassification;
+		//number of the k nearest neighbors that voted for the predicted classification
+		public final int[] votes;
+		//number of test points whose predicted classification matches the actual one
+		public int count;
+
+		Result(int numTestData) {
+			predictedClassification = new int[numTestData];
+			votes = new int[numTestData];
+		}
+	}
+
+	public Result classify(FeatureMatrix testData, ClassLabels testClassification) {
+		Result result = new Result(testData.getNumRows());
+		result.count = pool.invoke(new ClassifyTask(testData, testClassification, result, 0, testData.getNumRows()));
+		return result;
+	}
+
+	//Compares the throughput of several classifiers on testData. Each first runs untimed for warmUpNanos, so the JIT has
+	//compiled the code they share before any is timed. They are then timed in turn, numRounds times over, for nanosPerRound
+	//each, so that a machine that speeds up or slows down during the measurement affects them all alike.
+	//Returns the queries per second of each classifier in its fastest round.
+	public static double[] measureQueriesPerSecond(BatchClassifier[] classifiers, FeatureMatrix testData, ClassLabels testClassification, long warmUpNanos, int numRounds, long nanosPerRound) {
+		for (BatchClassifier classifier : classifiers) {
+			classifier.measureQueriesPerSecond(testData, testClassification, warmUpNanos);
+		}
+		double[] queriesPerSecond = new double[classifiers.length];
+		for (int round = 0; round < numRounds; round++) {
+			for (int c = 0; c < classifiers.length; c++) {
+				queriesPerSecond[c] = Math.max(queriesPerSecond[c], classifiers[c].measureQueriesPerSecond(testData, testClassification, nanosPerRound));
+			}
+		}
+		return queriesPerSecond;
+	}
+
+	//Classifies testData over and over for at least minNanos and returns the number of test points classified per second.
+	public double measureQueriesPerSecond(FeatureMatrix testData, ClassLabels testClassification, long minNanos) {
+		long numQueries = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			classify(testData, testClassification);
+			numQueries += testData.getNumRows();
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < minNanos);
+		return numQueries / (elapsed / 1e9);
+	}
+
+	private class ClassifyTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final FeatureMatrix testData;
+		private final ClassLabels testClassification;
+		private final Result result;
+		private final int lo;
+		private final int hi;
+
+		ClassifyTask(FeatureMatrix testData, ClassLabels testClassification, Result result, int lo, int hi) {
+			this.testData = testData;
+			this.testClassification = testClassification;
+			this.result = result;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (hi - lo > BATCH_SIZE) {
+				int mid = (lo + hi) >>> 1;
+				ClassifyTask left = new ClassifyTask(testData, testClassification, result, lo, mid);
+				ClassifyTask right = new ClassifyTask(testData, testClassification, result, mid, hi);
+				left.fork();
+				int rightCount = right.compute();
+				return left.join() + rightCount;
+			}
+
+			TopKSelector selector = new TopKSelector(k);
+			int[] numOccurances = new int[trainingClassification.getDictionary().size()];
+			int count = 0;
+			//timed locally and added to the metrics once per task, so the workers do not contend on them
+			boolean timed = Metrics.isEnabled();
+			LatencyHistogram latencies = timed ? new LatencyHistogram() : null;
+			long searchNanos = 0;
+			long voteNanos = 0;
+			for (int i = lo; i < hi; i++) {
+				long start = timed ? System.nanoTime() : 0;
+				neighborIndex.search(testData.getData(), testData.getRowOffset(i), selector);
+				long searched = timed ? System.nanoTime() : 0;
+				vote(selector, trainingClassification, numOccurances, result, i);
+				if (timed) {
+					long voted = System.nanoTime();
+					searchNanos += searched - start;
+					voteNanos += voted - searched;
+					latencies.record(voted - start);
+				}
+
+				if (testClassification.getId(i) == result.predictedClassification[i]) {
+					count++;
+				}
+			}
+			if (timed) {
+				Metrics.addTime("search", hi - lo, searchNanos);
+				Metrics.addTime("vote", hi - lo, voteNanos);
+				Metrics.record("queryLatency", latencies);
+				Metrics.increment("queries", hi - lo);
+			}
+			return count;
+		}
+	}
+
+	//Majority vote of the neighbors in selector, ties going to the class seen first in the training data.
+	//Stores the winning classification and its number of votes at position i of result. numOccurances is scratch space.
+	static void vote(TopKSelector selector, ClassIdLookup trainingClassification, int[] numOccurances, Result result, int i) {
+		vote(selector, selector.size(), trainingClassification, numOccurances, result, i);
+	}
+
+	//As above, using only the first numNeighbors neighbors of the sorted selector. The selector keeps the same order for
+	//any k, so its first numNeighbors entries are exactly the numNeighbors nearest and one search serves every smaller k.
+	static void vote(TopKSelector selector, int numNeighbors, ClassIdLookup trainingClassification, int[] numOccurances, Result result, int i) {
+		for (int j = 0; j < Math.min(numNeighbors, selector.size()); j++) {
+			numOccurances[trainingClassification.getId(selector.getIndex(j))]++;
+		}
+
+		int classification = -1;
+		int max = 0;
+
+		for (int id = 0; id < numOccurances.length; id++) {
+			if (numOccurances[id] > max) {
+				max = numOccurances[id];
+				classification = id;
+			}
+			numOccurances[id] = 0;
+		}
+
+		result.predictedClassification[i] = classification;
+		result.votes[i] = max;
+	}
+}
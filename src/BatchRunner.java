@@ -0,0 +1,343 @@
+/*
+ * Runs the feature and component tests of PcaKnn on several datasets in one JVM, so they share the JIT warmup.
+ * The datasets are listed in a manifest, one per line as trainingFile,testFile,featureListFile,resultsFile; blank lines
+ * and lines starting with # are ignored. The settings are those of PcaKnn.
+ *
+ * Work is shared between datasets by the content of their files, not their paths:
+ *   load      each distinct feature file is parsed once, however many datasets name it
+ *   prepare   each distinct training file is condensed, fitted and projected once (see PcaKnn.prepareTrainingSet)
+ *   skip      a dataset is skipped if its results file was written from files with the same SHA-256 hashes and the same
+ *             settings; they are recorded next to the results file, in resultsFile.inputs, with the hash of the results
+ *             file itself, so results rewritten since (say by PcaKnn with other settings) are not skipped. -force reruns
+ *             every dataset
+ * The datasets are then evaluated concurrently as fork/join tasks, whose tests split their test points across the same
+ * pool. The progress of each dataset is buffered and printed in one block when it finishes, and every results file is
+ * replaced atomically rather than appended to. The approximate search test of PcaKnn measures queries per second, so
+ * it runs afterwards, one dataset at a time.
+ *
+ * Usage: BatchRunner [manifestFile] [-force]
+ *
+ * @author Scott Weaver
+ */
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+public class BatchRunner {
+	private static String MANIFEST_FILE_PATH = "Data/manifest.csv";
+	private static int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+	//One line of the manifest.
+	static class Dataset {
+		final String trainingFilePath;
+		final String testFilePath;
+		final String featureListFilePath;
+		final String resultsFilePath;
+
+		Dataset(String trainingFilePath, String testFilePath, String featureListFilePath, String resultsFilePath) {
+			this.trainingFilePath = trainingFilePath;
+			this.testFilePath = testFilePath;
+			this.featureListFilePath = featureListFilePath;
+			this.resultsFilePath = resultsFilePath;
+		}
+	}
+
+	//A parsed feature file, with its own class dictionary.
+	private static class FeatureFile {
+		final FeatureMatrix data = new FeatureMatrix();
+		final ClassLabels classification = new ClassLabels(new ClassDictionary());
+		String columnHeaders;
+	}
+
+	private final ForkJoinPool pool;
+	//SHA-256 of each file, by path
+	private final HashMap<String,String> fileHashes = new HashMap<>();
+	//by the SHA-256 of their file
+	private final HashMap<String,FeatureFile> featureFiles = new HashMap<>();
+	private final HashMap<String,PcaKnn.PreparedTrainingSet> trainingSets = new HashMap<>();
+
+	public BatchRunner(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	static List<Dataset> readManifest(String manifestFilePath) throws IOException {
+		List<Dataset> datasets = new ArrayList<>();
+		HashSet<String> resultsFilePaths = new HashSet<>();
+		try (BufferedReader bufferedReader = new BufferedReader(new FileReader(manifestFilePath))) {
+			int lineNumber = 0;
+			for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] paths = line.split(",");
+				if (paths.length != 4) {
+					throw new IOException(manifestFilePath + ":" + lineNumber + ": expected trainingFile,testFile,featureListFile,resultsFile");
+				}
+				Dataset dataset = new Dataset(paths[0].trim(), paths[1].trim(), paths[2].trim(), paths[3].trim());
+				//two datasets writing the same file would overwrite each other
+				if (!resultsFilePaths.add(new File(dataset.resultsFilePath).getCanonicalPath())) {
+					throw new IOException(manifestFilePath + ":" + lineNumber + ": " + dataset.resultsFilePath + " is already the results file of another dataset");
+				}
+				datasets.add(dataset);
+			}
+		}
+		return datasets;
+	}
+
+	//Evaluates every dataset whose inputs changed since its results file was written, or every dataset if force is set.
+	//Returns the number of datasets that failed.
+	public int run(List<Dataset> datasets, boolean force) {
+		final List<EvaluateTask> tasks = new ArrayList<>();
+		int numFailed = 0;
+		for (Dataset dataset : datasets) {
+			try {
+				String inputs = getInputs(dataset);
+				if (!force && isUpToDate(dataset.resultsFilePath, inputs)) {
+					System.out.println("Up to date: " + dataset.resultsFilePath);
+					continue;
+				}
+
+				FeatureFile trainingFile = load(dataset.trainingFilePath);
+				FeatureFile testFile = load(dataset.testFilePath);
+				if (!trainingFile.columnHeaders.equals(testFile.columnHeaders)) {
+					throw new IOException("Features inconsistent between " + dataset.testFilePath + " and " + dataset.trainingFilePath + " (mismatching headers).");
+				}
+				tasks.add(new EvaluateTask(dataset, inputs, trainingFile, testFile, prepare(dataset.trainingFilePath, trainingFile)));
+			} catch (IOException e) {
+				System.err.println("Cannot evaluate " + dataset.resultsFilePath + ". " + e.getMessage());
+				numFailed++;
+			}
+		}
+
+		pool.invoke(new RecursiveTask<Void>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Void compute() {
+				ForkJoinTask.invokeAll(tasks);
+				return null;
+			}
+		});
+		for (EvaluateTask task : tasks) {
+			if (!task.join()) {
+				numFailed++;
+			}
+		}
+
+		//timed with the pool to itself
+		for (EvaluateTask task : tasks) {
+			if (task.join()) {
+				task.evaluateApproximateSearch();
+			}
+		}
+		return numFailed;
+	}
+
+	//The hashes of the files of dataset and the settings, as recorded in its inputs file.
+	private String getInputs(Dataset dataset) throws IOException {
+		return hash(dataset.trainingFilePath) + "  " + dataset.trainingFilePath + "\n"
+				+ hash(dataset.testFilePath) + "  " + dataset.testFilePath + "\n"
+				+ hash(dataset.featureListFilePath) + "  " + dataset.featureListFilePath + "\n"
+				+ PcaKnn.getSettings() + "\n";
+	}
+
+	//Whether resultsFilePath exists and its inputs file records inputs and the hash of its current contents.
+	private static boolean isUpToDate(String resultsFilePath, String inputs) throws IOException {
+		File inputsFile = new File(resultsFilePath + ".inputs");
+		if (!new File(resultsFilePath).isFile() || !inputsFile.isFile()) {
+			return false;
+		}
+		StringBuilder recorded = new StringBuilder();
+		try (BufferedReader bufferedReader = new BufferedReader(new FileReader(inputsFile))) {
+			for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
+				recorded.append(line).append("\n");
+			}
+		}
+		return recorded.toString().equals(getRecordedInputs(resultsFilePath, inputs));
+	}
+
+	//inputs followed by the hash of the results file, as written to the inputs file. The results file is hashed as it
+	//is now, not cached, since it is the file that changes.
+	private static String getRecordedInputs(String resultsFilePath, String inputs) throws IOException {
+		return inputs + getSha256(resultsFilePath) + "  " + resultsFilePath + "\n";
+	}
+
+	private String hash(String filePath) throws IOException {
+		String hash = fileHashes.get(filePath);
+		if (hash == null) {
+			hash = getSha256(filePath);
+			fileHashes.put(filePath, hash);
+		}
+		return hash;
+	}
+
+	static String getSha256(String filePath) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 is not available", e);
+		}
+		try (InputStream inputStream = new FileInputStream(filePath)) {
+			byte[] buffer = new byte[65536];
+			for (int read = inputStream.read(buffer); read >= 0; read = inputStream.read(buffer)) {
+				digest.update(buffer, 0, read);
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private FeatureFile load(String featureFilePath) throws IOException {
+		String hash = hash(featureFilePath);
+		FeatureFile featureFile = featureFiles.get(hash);
+		if (featureFile == null) {
+			featureFile = new FeatureFile();
+			featureFile.columnHeaders = PcaKnn.readFeatureFile(featureFilePath, featureFile.data, featureFile.classification);
+			featureFiles.put(hash, featureFile);
+		}
+		return featureFile;
+	}
+
+	private PcaKnn.PreparedTrainingSet prepare(String trainingFilePath, FeatureFile trainingFile) throws IOException {
+		String hash = hash(trainingFilePath);
+		PcaKnn.PreparedTrainingSet trainingSet = trainingSets.get(hash);
+		if (trainingSet == null) {
+			trainingSet = PcaKnn.prepareTrainingSet(trainingFile.data, trainingFile.classification, pool, System.out);
+			trainingSets.put(hash, trainingSet);
+		}
+		return trainingSet;
+	}
+
+	//Evaluates one dataset and records its inputs. Returns whether it succeeded.
+	private class EvaluateTask extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 1L;
+
+		private final Dataset dataset;
+		private final String inputs;
+		private final FeatureFile trainingFile;
+		private final FeatureFile testFile;
+		private final PcaKnn.PreparedTrainingSet trainingSet;
+		//the labels of the training set and the test file in this dataset's dictionary, set by compute
+		private ClassLabels trainingClassification;
+		private ClassLabels testClassification;
+
+		EvaluateTask(Dataset dataset, String inputs, FeatureFile trainingFile, FeatureFile testFile, PcaKnn.PreparedTrainingSet trainingSet) {
+			this.dataset = dataset;
+			this.inputs = inputs;
+			this.trainingFile = trainingFile;
+			this.testFile = testFile;
+			this.trainingSet = trainingSet;
+		}
+
+		@Override
+		protected Boolean compute() {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(buffer);
+			out.println("Training File Path: " + dataset.trainingFilePath);
+			out.println("Test File Path: " + dataset.testFilePath);
+
+			boolean succeeded = false;
+			long start = System.nanoTime();
+			try {
+				//the cached files may be shared with other datasets, so their labels are copied into a dictionary of this
+				//dataset's own; the training file is added first, so the ids are those PcaKnn gives the same files
+				ClassDictionary classDictionary = new ClassDictionary();
+				relabel(trainingFile.classification, classDictionary);
+				trainingClassification = relabel(trainingSet.classification, classDictionary);
+				testClassification = relabel(testFile.classification, classDictionary);
+
+				ArrayList<String> featuresOrderedByVariance = new ArrayList<>();
+				PcaKnn.readFeatureListFile(dataset.featureListFilePath, featuresOrderedByVariance);
+				Collections.reverse(featuresOrderedByVariance);
+				ArrayList<String> features = PcaKnn.getColumnHeaders(testFile.columnHeaders);
+
+				//the old inputs must not vouch for a results file that is about to change
+				new File(dataset.resultsFilePath + ".inputs").delete();
+				PcaKnn.evaluate(trainingSet, trainingClassification, testFile.data, testClassification, features, featuresOrderedByVariance, dataset.resultsFilePath, pool, out);
+				Utilities.writeFileAtomically(dataset.resultsFilePath + ".inputs", getRecordedInputs(dataset.resultsFilePath, inputs));
+				out.println("Wrote " + dataset.resultsFilePath + " in " + (System.nanoTime() - start) / 1e6 + " ms");
+				succeeded = true;
+			} catch (IOException | RuntimeException e) {
+				//a failure only fails this dataset; the others go on and every log is still printed
+				out.println("Cannot evaluate " + dataset.resultsFilePath + ". " + e);
+			}
+			out.flush();
+
+			synchronized (System.out) {
+				System.out.println("===================================");
+				System.out.print(buffer.toString());
+				System.out.flush();
+			}
+			return succeeded;
+		}
+
+		//Runs the approximate search test of PcaKnn on this dataset, after compute succeeded.
+		void evaluateApproximateSearch() {
+			System.out.println("===================================");
+			System.out.println("Approximate Search of " + dataset.resultsFilePath);
+			try {
+				PcaKnn.evaluateApproximateSearch(trainingSet, trainingClassification, testFile.data, testClassification, pool, System.out);
+			} catch (RuntimeException e) {
+				System.err.println("Cannot run the approximate search test of " + dataset.resultsFilePath + ". " + e);
+			}
+		}
+	}
+
+	//Returns classification with the ids of dictionary, adding the classes it does not have yet.
+	private static ClassLabels relabel(ClassLabels classification, ClassDictionary dictionary) {
+		ClassLabels relabeled = new ClassLabels(dictionary);
+		for (int i = 0; i < classification.size(); i++) {
+			relabeled.add(classification.getName(i));
+		}
+		return relabeled;
+	}
+
+	public static void main(String[] args) {
+		String manifestFilePath = MANIFEST_FILE_PATH;
+		boolean force = false;
+		for (String arg : args) {
+			if (arg.equals("-force")) {
+				force = true;
+			} else {
+				manifestFilePath = arg;
+			}
+		}
+
+		List<Dataset> datasets;
+		try {
+			datasets = readManifest(manifestFilePath);
+		} catch (IOException e) {
+			System.err.println("Cannot read manifest file. " + e.getMessage());
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(NUM_THREADS);
+		long start = System.nanoTime();
+		int numFailed = new BatchRunner(pool).run(datasets, force);
+		pool.shutdown();
+		System.out.println("===================================");
+		System.out.println("Ran " + datasets.size() + " datasets in " + (System.nanoTime() - start) / 1e6 + " ms, " + numFailed + " failed");
+	}
+}
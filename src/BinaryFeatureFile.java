@@ -0,0 +1,373 @@
+/*
+ * Compact binary form of a feature file, read by memory-mapping it instead of parsing text.
+ * All values are little-endian:
+ *
+ *   "PKNF"                           magic
+ *   int version                      VERSION
+ *   int element size                 8 for doubles, 4 for floats
+ *   int numRows, int numColumns
+ *   string column headers            the header line of the CSV file
+ *   int numClasses, string[] names   class dictionary of the file
+ *   int[numRows] class ids           index into the names above
+ *   padding to a multiple of 8 bytes
+ *   numRows x numColumns values      row-major
+ *
+ * Strings are an int byte count followed by UTF-8 bytes. Floats halve the file size at the cost of precision.
+ * Files larger than memory can be written and read a chunk of rows at a time (see Writer), or searched in place
+ * through MappedFeatureStore.
+ *
+ * @author Scott Weaver
+ */
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+public class BinaryFeatureFile {
+	private static final byte[] MAGIC = {'P', 'K', 'N', 'F'};
+	private static final int VERSION = 1;
+	//largest region mapped at once
+	private static long MAP_SIZE = 1L << 30;
+
+	//True if the file starts with the binary feature file magic.
+	public static boolean isBinaryFeatureFile(String featureFilePath) {
+		try (RandomAccessFile file = new RandomAccessFile(featureFilePath, "r")) {
+			byte[] magic = new byte[MAGIC.length];
+			if (file.read(magic) != magic.length) {
+				return false;
+			}
+			for (int i = 0; i < magic.length; i++) {
+				if (magic[i] != MAGIC[i]) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public static void write(String featureFilePath, String columnHeaders, FeatureMatrix featureData, ClassLabels featureClassification, boolean useFloats) throws IOException {
+		int numRows = featureData.getNumRows();
+		int numColumns = featureData.getNumColumns();
+		int elementSize = useFloats ? 4 : 8;
+
+		//the file's dictionary only holds the classes that occur in it, numbered in order of first appearance
+		ClassDictionary fileDictionary = new ClassDictionary();
+		int[] fileIds = new int[numRows];
+		for (int i = 0; i < numRows; i++) {
+			fileIds[i] = fileDictionary.getId(featureClassification.getName(i));
+		}
+
+		try (RandomAccessFile file = new RandomAccessFile(featureFilePath, "rw"); FileChannel channel = file.getChannel()) {
+			channel.truncate(0);
+
+			ByteBuffer header = getHeader(columnHeaders, fileDictionary, numRows, numColumns, elementSize, fileIds);
+			writeFully(channel, header);
+			writeValues(channel, featureData.getData(), numRows * numColumns, useFloats);
+		}
+	}
+
+	//Size of the header before the ids, which is where the ids start.
+	private static int getIdsStart(String columnHeaders, ClassDictionary dictionary) {
+		int idsStart = MAGIC.length + 4 * 5 + columnHeaders.getBytes(StandardCharsets.UTF_8).length + 4;
+		for (int id = 0; id < dictionary.size(); id++) {
+			idsStart += 4 + dictionary.getName(id).getBytes(StandardCharsets.UTF_8).length;
+		}
+		return idsStart;
+	}
+
+	//Returns the header of a file ready to write: up to the start of the values, or only up to the ids when ids is null.
+	private static ByteBuffer getHeader(String columnHeaders, ClassDictionary dictionary, int numRows, int numColumns, int elementSize, int[] ids) {
+		int idsStart = getIdsStart(columnHeaders, dictionary);
+		long headerSize = ids == null ? idsStart : getDataStart(idsStart, numRows);
+		if (headerSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many rows to write at once: " + numRows);
+		}
+
+		ByteBuffer header = ByteBuffer.allocate((int) headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(elementSize);
+		header.putInt(numRows);
+		header.putInt(numColumns);
+		putString(header, columnHeaders);
+		header.putInt(dictionary.size());
+		for (int id = 0; id < dictionary.size(); id++) {
+			putString(header, dictionary.getName(id));
+		}
+		if (ids != null) {
+			for (int id : ids) {
+				header.putInt(id);
+			}
+		}
+		header.position(0);
+		return header;
+	}
+
+	//The values start after the ids, at the next multiple of 8 bytes.
+	private static long getDataStart(long idsStart, int numRows) {
+		return (idsStart + 4L * numRows + 7) & ~7L;
+	}
+
+	//Writes the first numValues values of data at the channel's position, as floats or doubles.
+	private static void writeValues(FileChannel channel, double[] data, int numValues, boolean useFloats) throws IOException {
+		int elementSize = useFloats ? 4 : 8;
+		ByteBuffer chunk = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < numValues; i++) {
+			if (chunk.remaining() < elementSize) {
+				chunk.flip();
+				writeFully(channel, chunk);
+				chunk.clear();
+			}
+			if (useFloats) {
+				chunk.putFloat((float) data[i]);
+			} else {
+				chunk.putDouble(data[i]);
+			}
+		}
+		chunk.flip();
+		writeFully(channel, chunk);
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	//Writes a binary feature file a chunk of rows at a time, for data too large to hold in memory. The number of rows is
+	//fixed when the file is created and rows are written in the order they are appended. Ids are written as they are in
+	//dictionary, so every class of the appended rows must be in it when the writer is created.
+	public static class Writer implements Closeable {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final int numRows;
+		private final int numColumns;
+		private final int numClasses;
+		private final boolean useFloats;
+		private final long idsStart;
+		private final long dataStart;
+		private int rowsWritten;
+
+		public Writer(String featureFilePath, String columnHeaders, ClassDictionary dictionary, int numRows, int numColumns, boolean useFloats) throws IOException {
+			this.numRows = numRows;
+			this.numColumns = numColumns;
+			this.numClasses = dictionary.size();
+			this.useFloats = useFloats;
+			this.idsStart = getIdsStart(columnHeaders, dictionary);
+			this.dataStart = getDataStart(idsStart, numRows);
+
+			file = new RandomAccessFile(featureFilePath, "rw");
+			channel = file.getChannel();
+			try {
+				channel.truncate(0);
+				writeFully(channel, getHeader(columnHeaders, dictionary, numRows, numColumns, useFloats ? 4 : 8, null));
+			} catch (IOException | RuntimeException e) {
+				file.close();
+				throw e;
+			}
+		}
+
+		//Writes the rows of chunkData and their classifications after the rows already written.
+		public void append(FeatureMatrix chunkData, ClassLabels chunkClassification) throws IOException {
+			int chunkRows = chunkData.getNumRows();
+			if (chunkRows > 0 && chunkData.getNumColumns() != numColumns) {
+				throw new IllegalArgumentException("Rows have " + chunkData.getNumColumns() + " columns, expected " + numColumns + ".");
+			}
+			if (rowsWritten + chunkRows > numRows) {
+				throw new IOException("More than the " + numRows + " rows the file was created for");
+			}
+
+			ByteBuffer ids = ByteBuffer.allocate(4 * chunkRows).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < chunkRows; i++) {
+				int id = chunkClassification.getId(i);
+				if (id >= numClasses) {
+					throw new IllegalArgumentException("Class " + chunkClassification.getName(i) + " was added to the dictionary after the file was created.");
+				}
+				ids.putInt(id);
+			}
+			ids.flip();
+			channel.position(idsStart + 4L * rowsWritten);
+			writeFully(channel, ids);
+
+			channel.position(dataStart + (long) rowsWritten * numColumns * (useFloats ? 4 : 8));
+			writeValues(channel, chunkData.getData(), chunkRows * numColumns, useFloats);
+			rowsWritten += chunkRows;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (rowsWritten != numRows) {
+					throw new IOException("Only " + rowsWritten + " of " + numRows + " rows were written");
+				}
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	//Layout of a binary feature file, as read by readHeader.
+	static class Header {
+		int elementSize;
+		int numRows;
+		int numColumns;
+		String columnHeaders;
+		//id in the caller's dictionary of each class id used in the file
+		int[] classIds;
+		long idsStart;
+		long dataStart;
+	}
+
+	//Reads and checks the header of an open file, adding its classes to dictionary.
+	static Header readHeader(String featureFilePath, FileChannel channel, ClassDictionary dictionary) throws IOException {
+		long fileSize = channel.size();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, MAP_SIZE));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (buffer.get() != MAGIC[i]) {
+					throw new IOException(featureFilePath + ": not a binary feature file");
+				}
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException(featureFilePath + ": unsupported binary feature file version " + version);
+			}
+
+			Header header = new Header();
+			header.elementSize = buffer.getInt();
+			header.numRows = buffer.getInt();
+			header.numColumns = buffer.getInt();
+			if ((header.elementSize != 4 && header.elementSize != 8) || header.numRows < 0 || header.numColumns < 0) {
+				throw new IOException(featureFilePath + ": corrupt binary feature file header");
+			}
+			header.columnHeaders = getString(featureFilePath, buffer);
+
+			//map the file's class ids onto the caller's dictionary; every class name takes at least its 4 byte length
+			int numClasses = buffer.getInt();
+			if (numClasses < 0 || numClasses > buffer.remaining() / 4) {
+				throw new IOException(featureFilePath + ": corrupt binary feature file header");
+			}
+			header.classIds = new int[numClasses];
+			for (int id = 0; id < numClasses; id++) {
+				header.classIds[id] = dictionary.getId(getString(featureFilePath, buffer));
+			}
+
+			header.idsStart = buffer.position();
+			header.dataStart = getDataStart(header.idsStart, header.numRows);
+			if (header.dataStart + (long) header.numRows * header.numColumns * header.elementSize > fileSize) {
+				throw new IOException(featureFilePath + ": binary feature file is truncated");
+			}
+			return header;
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException(featureFilePath + ": corrupt binary feature file header");
+		}
+	}
+
+	//Appends every row of the file to featureData and its classification to featureClassification. Returns the header line.
+	public static String read(String featureFilePath, FeatureMatrix featureData, ClassLabels featureClassification) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(featureFilePath, "r"); FileChannel channel = file.getChannel()) {
+			Header header = readHeader(featureFilePath, channel, featureClassification.getDictionary());
+			readClassIds(featureFilePath, channel, header, 0, header.numRows, featureClassification);
+
+			//the values are copied straight from the mapped file into featureData
+			int valuesRead = featureData.addZeroRows(header.numRows, header.numColumns);
+			readValues(channel, header, 0, header.numRows, featureData.getData(), valuesRead);
+
+			return header.columnHeaders;
+		}
+	}
+
+	//Passes the rows of the file to handler chunkSize rows at a time (fewer in the last chunk), with classifications from
+	//dictionary, so that files larger than memory can be processed. Returns the header line.
+	public static String read(String featureFilePath, ClassDictionary dictionary, int chunkSize, FeatureFileReader.ChunkHandler handler) throws IOException {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1: " + chunkSize);
+		}
+		try (RandomAccessFile file = new RandomAccessFile(featureFilePath, "r"); FileChannel channel = file.getChannel()) {
+			Header header = readHeader(featureFilePath, channel, dictionary);
+			for (int firstRow = 0; firstRow < header.numRows; firstRow += chunkSize) {
+				int chunkRows = Math.min(chunkSize, header.numRows - firstRow);
+				ClassLabels chunkClassification = new ClassLabels(dictionary);
+				readClassIds(featureFilePath, channel, header, firstRow, chunkRows, chunkClassification);
+				FeatureMatrix chunkData = new FeatureMatrix(chunkRows, header.numColumns);
+				readValues(channel, header, firstRow, chunkRows, chunkData.getData(), 0);
+				handler.handleChunk(chunkData, chunkClassification);
+			}
+			return header.columnHeaders;
+		}
+	}
+
+	//Appends the classifications of rows [firstRow, firstRow + count) to featureClassification.
+	private static void readClassIds(String featureFilePath, FileChannel channel, Header header, int firstRow, int count, ClassLabels featureClassification) throws IOException {
+		ByteBuffer ids = ByteBuffer.allocate(4 * Math.min(count, 1 << 16)).order(ByteOrder.LITTLE_ENDIAN);
+		long position = header.idsStart + 4L * firstRow;
+		long end = position + 4L * count;
+		while (position < end) {
+			ids.clear();
+			ids.limit((int) Math.min(ids.capacity(), end - position));
+			while (ids.hasRemaining()) {
+				if (channel.read(ids, position + ids.position()) < 0) {
+					throw new IOException(featureFilePath + ": binary feature file is truncated");
+				}
+			}
+			ids.flip();
+			while (ids.hasRemaining()) {
+				int id = ids.getInt();
+				if (id < 0 || id >= header.classIds.length) {
+					throw new IOException(featureFilePath + ": corrupt class id " + id);
+				}
+				featureClassification.addId(header.classIds[id]);
+			}
+			position += ids.limit();
+		}
+	}
+
+	//Copies the values of rows [firstRow, firstRow + count) into data starting at offset.
+	static void readValues(FileChannel channel, Header header, int firstRow, int count, double[] data, int offset) throws IOException {
+		int elementSize = header.elementSize;
+		long start = header.dataStart + (long) firstRow * header.numColumns * elementSize;
+		long end = start + (long) count * header.numColumns * elementSize;
+		long regionSize = MAP_SIZE - MAP_SIZE % elementSize;
+		for (long position = start; position < end; position += regionSize) {
+			long size = Math.min(regionSize, end - position);
+			MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			region.order(ByteOrder.LITTLE_ENDIAN);
+
+			int numValues = (int) (size / elementSize);
+			if (elementSize == 8) {
+				region.asDoubleBuffer().get(data, offset, numValues);
+			} else {
+				for (int i = 0; i < numValues; i++) {
+					data[offset + i] = region.getFloat();
+				}
+			}
+			offset += numValues;
+		}
+	}
+
+	private static void putString(ByteBuffer buffer, String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	//Reads a string written by putString, checking its length against the bytes left in buffer.
+	static String getString(String filePath, ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IOException(filePath + ": corrupt string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
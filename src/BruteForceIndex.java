@@ -0,0 +1,52 @@
+/*
+ * NeighborIndex that scans every training point. No build cost, and the fastest choice in high dimensions.
+ * The training points can optionally be kept as floats, which halves the memory read by every scan at the cost of
+ * float precision in the distances, so near ties may rank differently than with doubles.
+ *
+ * @author Scott Weaver
+ */
+public class BruteForceIndex implements NeighborIndex {
+	private static final DistanceKernel DISTANCE_KERNEL = DistanceKernel.getSelected();
+
+	private final FeatureMatrix fullData;
+	//row-major copy of fullData when stored as floats, otherwise null
+	private final float[] floatData;
+
+	public BruteForceIndex(FeatureMatrix fullData) {
+		this(fullData, false);
+	}
+
+	public BruteForceIndex(FeatureMatrix fullData, boolean useFloats) {
+		this.fullData = fullData;
+		if (useFloats) {
+			double[] data = fullData.getData();
+			floatData = new float[fullData.getNumRows() * fullData.getNumColumns()];
+			for (int i = 0; i < floatData.length; i++) {
+				floatData[i] = (float) data[i];
+			}
+		} else {
+			floatData = null;
+		}
+	}
+
+	@Override
+	public void search(double[] testData, int testOffset, TopKSelector selector) {
+		if (floatData == null) {
+			Utilities.performKNN(fullData, testData, testOffset, selector);
+			return;
+		}
+
+		int fullDataSize = fullData.getNumRows();
+		int numFeatures = fullData.getNumColumns();
+		float[] testPoint = new float[numFeatures];
+		for (int i = 0; i < numFeatures; i++) {
+			testPoint[i] = (float) testData[testOffset + i];
+		}
+
+		selector.clear();
+		for (int i = 0; i < fullDataSize; i++) {
+			selector.offer(i, DISTANCE_KERNEL.squaredDistance(testPoint, 0, floatData, i * numFeatures, numFeatures));
+		}
+		selector.sort();
+	}
+}
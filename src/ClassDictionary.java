@@ -0,0 +1,32 @@
+/*
+ * Maps classification names to small integer ids, in order of first appearance.
+ * Training and test labels must share a dictionary so their ids can be compared directly.
+ *
+ * @author Scott Weaver
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class ClassDictionary {
+	private final HashMap<String,Integer> ids = new HashMap<>();
+	private final ArrayList<String> names = new ArrayList<>();
+
+	//Returns the id of classification, assigning the next free id if it has not been seen before.
+	public int getId(String classification) {
+		Integer id = ids.get(classification);
+		if (id == null) {
+			id = names.size();
+			ids.put(classification, id);
+			names.add(classification);
+		}
+		return id;
+	}
+
+	public String getName(int id) {
+		return names.get(id);
+	}
+
+	public int size() {
+		return names.size();
+	}
+}
@@ -0,0 +1,11 @@
+/*
+ * The classification of each training point as an id from a ClassDictionary, wherever the ids are stored: in memory
+ * (ClassLabels) or in a memory-mapped file (MappedFeatureStore). Lets BatchClassifier.vote count the votes of either.
+ *
+ * @author Scott Weaver
+ */
+public interface ClassIdLookup {
+
+	//Dictionary id of the classification of a row.
+	int getId(int row);
+}
@@ -0,0 +1,47 @@
+/*
+ * Classification of each row of a FeatureMatrix, stored as ids from a ClassDictionary.
+ *
+ * @author Scott Weaver
+ */
+import java.util.Arrays;
+
+public class ClassLabels implements ClassIdLookup {
+	private final ClassDictionary dictionary;
+	private int[] ids;
+	private int size;
+
+	public ClassLabels(ClassDictionary dictionary) {
+		this.dictionary = dictionary;
+		this.ids = new int[16];
+	}
+
+	public ClassDictionary getDictionary() {
+		return dictionary;
+	}
+
+	public void add(String classification) {
+		addId(dictionary.getId(classification));
+	}
+
+	//Adds a classification by its id in the dictionary.
+	public void addId(int id) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, 2 * ids.length);
+		}
+		ids[size] = id;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int getId(int row) {
+		return ids[row];
+	}
+
+	public String getName(int row) {
+		return dictionary.getName(ids[row]);
+	}
+}
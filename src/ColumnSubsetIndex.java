@@ -0,0 +1,35 @@
+/*
+ * NeighborIndex that scans every training point using only a subset of the columns.
+ * Test points are read with the same column indices, so features can be dropped from both training and test data
+ * without copying either matrix.
+ *
+ * @author Scott Weaver
+ */
+public class ColumnSubsetIndex implements NeighborIndex {
+	private final FeatureMatrix fullData;
+	private final int[] activeColumns;
+
+	//activeColumns lists the columns used in the distance; it is copied, so the caller may reuse the array.
+	public ColumnSubsetIndex(FeatureMatrix fullData, int[] activeColumns) {
+		this.fullData = fullData;
+		this.activeColumns = activeColumns.clone();
+	}
+
+	@Override
+	public void search(double[] testData, int testOffset, TopKSelector selector) {
+		int fullDataSize = fullData.getNumRows();
+		double[] data = fullData.getData();
+
+		selector.clear();
+		for (int i = 0; i < fullDataSize; i++) {
+			int offset = fullData.getRowOffset(i);
+			double sum = 0.0;
+			for (int column : activeColumns) {
+				double diff = testData[testOffset + column] - data[offset + column];
+				sum += diff * diff;
+			}
+			selector.offer(i, sum);
+		}
+		selector.sort();
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Streaming mean and covariance of feature data, computed in one pass without copying or mean-centering the data first.
+ * Rows are absorbed in cache-sized blocks: the block mean and co-moments are computed while the block is in cache and
+ * then merged into the running totals with the pairwise update of Chan et al., which is as numerically stable as
+ * Welford's single-row update. Two accumulators over different rows can be merged the same way, so partial results
+ * can be computed on separate threads (see Utilities.getCovarianceAccumulator).
+ * Only the upper triangle of the co-moment matrix is accumulated; it is mirrored when the covariance is read.
+ *
+ * @author Scott Weaver
+ */
+import java.util.Arrays;
+
+public class CovarianceAccumulator {
+	//rows per block; BLOCK_SIZE rows of 14 features fit comfortably in L1/L2 cache
+	private static int BLOCK_SIZE = 256;
+
+	private final int numFeatures;
+	private long count;
+	private final double[] mean;
+	//sum of products of deviations from the mean, upper triangle of a numFeatures x numFeatures row-major matrix
+	private final double[] coMoment;
+
+	//scratch buffer for add
+	private final double[] rowDelta;
+	//scratch buffers for addRows, allocated on first use
+	private double[] blockMean;
+	private double[] blockCoMoment;
+	private double[] blockDeviation;
+
+	public CovarianceAccumulator(int numFeatures) {
+		this.numFeatures = numFeatures;
+		this.mean = new double[numFeatures];
+		this.coMoment = new double[numFeatures * numFeatures];
+		this.rowDelta = new double[numFeatures];
+	}
+
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	//Welford update for a single row.
+	public void add(double[] row) {
+		count++;
+		for (int i = 0; i < numFeatures; i++) {
+			rowDelta[i] = row[i] - mean[i];
+			mean[i] += rowDelta[i] / count;
+		}
+		for (int i = 0; i < numFeatures; i++) {
+			int offset = i * numFeatures;
+			for (int j = i; j < numFeatures; j++) {
+				coMoment[offset + j] += rowDelta[i] * (row[j] - mean[j]);
+			}
+		}
+	}
+
+	//Absorbs rows [lo, hi) of featureData one block at a time.
+	public void addRows(FeatureMatrix featureData, int lo, int hi) {
+		if (blockMean == null) {
+			blockMean = new double[numFeatures];
+			blockCoMoment = new double[numFeatures * numFeatures];
+			blockDeviation = new double[BLOCK_SIZE * numFeatures];
+		}
+
+		double[] data = featureData.getData();
+
+		for (int blockStart = lo; blockStart < hi; blockStart += BLOCK_SIZE) {
+			int blockEnd = Math.min(hi, blockStart + BLOCK_SIZE);
+			int blockCount = blockEnd - blockStart;
+
+			Arrays.fill(blockMean, 0.0);
+			for (int r = blockStart; r < blockEnd; r++) {
+				int rowOffset = featureData.getRowOffset(r);
+				for (int i = 0; i < numFeatures; i++) {
+					blockMean[i] += data[rowOffset + i];
+				}
+			}
+			for (int i = 0; i < numFeatures; i++) {
+				blockMean[i] /= blockCount;
+			}
+
+			for (int r = 0; r < blockCount; r++) {
+				int rowOffset = featureData.getRowOffset(blockStart + r);
+				int offset = r * numFeatures;
+				for (int i = 0; i < numFeatures; i++) {
+					blockDeviation[offset + i] = data[rowOffset + i] - blockMean[i];
+				}
+			}
+
+			Arrays.fill(blockCoMoment, 0.0);
+			for (int r = 0; r < blockCount; r++) {
+				int offset = r * numFeatures;
+				for (int i = 0; i < numFeatures; i++) {
+					double deviation = blockDeviation[offset + i];
+					int rowOffset = i * numFeatures;
+					for (int j = i; j < numFeatures; j++) {
+						blockCoMoment[rowOffset + j] += deviation * blockDeviation[offset + j];
+					}
+				}
+			}
+
+			merge(blockCount, blockMean, blockCoMoment);
+		}
+	}
+
+	//Combines the rows absorbed by other into this accumulator. other is not modified.
+	public void merge(CovarianceAccumulator other) {
+		if (other.numFeatures != numFeatures) {
+			throw new IllegalArgumentException("Cannot merge accumulators with " + numFeatures + " and " + other.numFeatures + " features.");
+		}
+		merge(other.count, other.mean, other.coMoment);
+	}
+
+	private void merge(long otherCount, double[] otherMean, double[] otherCoMoment) {
+		if (otherCount == 0) {
+			return;
+		}
+
+		long totalCount = count + otherCount;
+		double weight = (double) count * otherCount / totalCount;
+
+		for (int i = 0; i < numFeatures; i++) {
+			double deltaI = otherMean[i] - mean[i];
+			int offset = i * numFeatures;
+			for (int j = i; j < numFeatures; j++) {
+				coMoment[offset + j] += otherCoMoment[offset + j] + deltaI * (otherMean[j] - mean[j]) * weight;
+			}
+		}
+		for (int i = 0; i < numFeatures; i++) {
+			mean[i] += (otherMean[i] - mean[i]) * otherCount / totalCount;
+		}
+
+		count = totalCount;
+	}
+
+	//Returns a copy of the mean of each feature (column).
+	public double[] getMean() {
+		return mean.clone();
+	}
+
+	//Returns the sample covariance matrix (divided by count - 1), with the upper triangle mirrored into the lower.
+	public double[][] getCovarianceMatrix() {
+		double[][] covarianceMatrix = new double[numFeatures][numFeatures];
+
+		for (int i = 0; i < numFeatures; i++) {
+			int offset = i * numFeatures;
+			for (int j = i; j < numFeatures; j++) {
+				double covariance = coMoment[offset + j] / (count - 1);
+				covarianceMatrix[i][j] = covariance;
+				covarianceMatrix[j][i] = covariance;
+			}
+		}
+
+		return covarianceMatrix;
+	}
+}
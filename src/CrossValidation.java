@@ -0,0 +1,318 @@
+/*
+ * k-fold cross-validation of the feature and component tests of PcaKnn over a grid of k values.
+ * The rows of the feature files are split into stratified folds; each fold in turn is held out and classified against
+ * the rest, with the feature removals and the number of principal components of PcaKnn, for every k of the grid.
+ *
+ * Work is shared across the grid:
+ *   one PrefixDistanceSweep per fold and test runs at the largest k; its neighbors also vote for every smaller k
+ *   the principal components of a fold are fitted and projected once, onto all components; fewer components are a prefix
+ * Folds run as fork/join tasks, and each fold's sweeps split their test points across the same pool.
+ *
+ * The results file extends the layout of PcaKnn's results.csv: the same Num Removed, Features and Components columns,
+ * holding the accuracy over all folds, followed by K and the standard deviation of the per-fold accuracies. There is one
+ * block of rows per k. The file is replaced, not appended to.
+ *
+ * Usage: CrossValidation featureListFile featureFile [featureFile ...] [-folds n] [-k k1,k2,...] [-out resultsFile]
+ * The feature files are pooled before splitting, so the training and test files of PcaKnn can both be given.
+ *
+ * @author Scott Weaver
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+public class CrossValidation {
+	private static int NUM_FOLDS = 10;
+	private static int[] K_VALUES = {1, 3, 5, 7, 9};
+	private static String RESULTS_FILE_PATH = "Data/cv_results.csv";
+	//seed of the shuffle that assigns rows to folds
+	private static long SEED = 0;
+
+	private final FeatureMatrix featureData;
+	private final ClassLabels featureClassification;
+	private final int[] columnOrder;
+	private final int[] kValues;
+	private final int maxK;
+	private final ForkJoinPool pool;
+
+	//Correct classifications of each test in one fold, indexed [k][step] with steps numbered as in PrefixDistanceSweep.
+	static class FoldResult {
+		final int numHeldOut;
+		final int[][] featureCounts;
+		final int[][] componentCounts;
+
+		FoldResult(int numHeldOut, BatchClassifier.Result[][] featureResults, BatchClassifier.Result[][] componentResults) {
+			this.numHeldOut = numHeldOut;
+			this.featureCounts = getCounts(featureResults);
+			this.componentCounts = getCounts(componentResults);
+		}
+
+		private static int[][] getCounts(BatchClassifier.Result[][] results) {
+			int[][] counts = new int[results.length][results[0].length];
+			for (int q = 0; q < results.length; q++) {
+				for (int m = 0; m < results[q].length; m++) {
+					counts[q][m] = results[q][m].count;
+				}
+			}
+			return counts;
+		}
+	}
+
+	public CrossValidation(FeatureMatrix featureData, ClassLabels featureClassification, int[] columnOrder, int[] kValues, ForkJoinPool pool) {
+		this.featureData = featureData;
+		this.featureClassification = featureClassification;
+		this.columnOrder = columnOrder.clone();
+		this.kValues = kValues.clone();
+		this.pool = pool;
+
+		int max = 0;
+		for (int k : kValues) {
+			if (k < 1) {
+				throw new IllegalArgumentException("k must be at least 1: " + k);
+			}
+			max = Math.max(max, k);
+		}
+		this.maxK = max;
+	}
+
+	//Assigns each row to one of numFolds folds, shuffling the rows of each class and dealing them out in turn so that every
+	//fold gets about the same share of each class. Depends only on the labels and the seed.
+	static int[] assignFolds(ClassLabels featureClassification, int numFolds, long seed) {
+		int numRows = featureClassification.size();
+		List<List<Integer>> rowsByClass = new ArrayList<>();
+		for (int id = 0; id < featureClassification.getDictionary().size(); id++) {
+			rowsByClass.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i < numRows; i++) {
+			rowsByClass.get(featureClassification.getId(i)).add(i);
+		}
+
+		Random random = new Random(seed);
+		int[] folds = new int[numRows];
+		int next = 0;
+		for (List<Integer> rows : rowsByClass) {
+			Collections.shuffle(rows, random);
+			for (int row : rows) {
+				folds[row] = next;
+				next = (next + 1) % numFolds;
+			}
+		}
+		return folds;
+	}
+
+	//Runs every fold and returns their results in fold order.
+	public FoldResult[] run(int numFolds, long seed) {
+		if (numFolds < 2 || numFolds > featureData.getNumRows()) {
+			throw new IllegalArgumentException("Number of folds must be between 2 and " + featureData.getNumRows() + ": " + numFolds);
+		}
+		int[] folds = assignFolds(featureClassification, numFolds, seed);
+
+		List<FoldTask> tasks = new ArrayList<>(numFolds);
+		for (int f = 0; f < numFolds; f++) {
+			tasks.add(new FoldTask(folds, f));
+		}
+		pool.invoke(new RecursiveTask<Void>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Void compute() {
+				ForkJoinTask.invokeAll(tasks);
+				return null;
+			}
+		});
+
+		FoldResult[] results = new FoldResult[numFolds];
+		for (int f = 0; f < numFolds; f++) {
+			results[f] = tasks.get(f).join();
+		}
+		return results;
+	}
+
+	private class FoldTask extends RecursiveTask<FoldResult> {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] folds;
+		private final int fold;
+
+		FoldTask(int[] folds, int fold) {
+			this.folds = folds;
+			this.fold = fold;
+		}
+
+		@Override
+		protected FoldResult compute() {
+			int numFeatures = featureData.getNumColumns();
+			FeatureMatrix trainingData = new FeatureMatrix();
+			ClassLabels trainingClassification = new ClassLabels(featureClassification.getDictionary());
+			FeatureMatrix testData = new FeatureMatrix();
+			ClassLabels testClassification = new ClassLabels(featureClassification.getDictionary());
+			for (int i = 0; i < featureData.getNumRows(); i++) {
+				if (folds[i] == fold) {
+					testData.addRow(featureData.getRow(i));
+					testClassification.addId(featureClassification.getId(i));
+				} else {
+					trainingData.addRow(featureData.getRow(i));
+					trainingClassification.addId(featureClassification.getId(i));
+				}
+			}
+
+			PrefixDistanceSweep featureSweep = new PrefixDistanceSweep(trainingData, trainingClassification, columnOrder, maxK, pool);
+			BatchClassifier.Result[][] featureResults = featureSweep.classify(testData, testClassification, kValues);
+
+			//fitted on the training rows of the fold only, so the held-out rows do not leak into the components
+			CovarianceAccumulator accumulator = Utilities.getCovarianceAccumulator(trainingData, numFeatures, pool);
+			ProjectionEngine projection = new ProjectionEngine(accumulator.getMean(), new PcaModel(accumulator.getCovarianceMatrix()).getEigenvectorMatrix(numFeatures));
+			FeatureMatrix projectedTrainingData = projection.project(trainingData, pool);
+			FeatureMatrix projectedTestData = projection.project(testData, pool);
+
+			int[] componentOrder = new int[numFeatures];
+			for (int i = 0; i < numFeatures; i++) {
+				componentOrder[i] = i;
+			}
+			PrefixDistanceSweep componentSweep = new PrefixDistanceSweep(projectedTrainingData, trainingClassification, componentOrder, maxK, pool);
+			BatchClassifier.Result[][] componentResults = componentSweep.classify(projectedTestData, testClassification, kValues);
+
+			return new FoldResult(testData.getNumRows(), featureResults, componentResults);
+		}
+	}
+
+	//Returns the accuracy over all folds of step m of a test with k = kValues[q], and the standard deviation of the per-fold accuracies.
+	private static double[] getAccuracy(FoldResult[] foldResults, boolean components, int q, int m) {
+		int numFolds = foldResults.length;
+		long count = 0;
+		long total = 0;
+		double[] foldAccuracies = new double[numFolds];
+		for (int f = 0; f < numFolds; f++) {
+			int foldCount = components ? foldResults[f].componentCounts[q][m] : foldResults[f].featureCounts[q][m];
+			count += foldCount;
+			total += foldResults[f].numHeldOut;
+			foldAccuracies[f] = ((double) foldCount) / foldResults[f].numHeldOut;
+		}
+
+		double mean = 0;
+		for (double accuracy : foldAccuracies) {
+			mean += accuracy;
+		}
+		mean /= numFolds;
+		double sumOfSquares = 0;
+		for (double accuracy : foldAccuracies) {
+			sumOfSquares += (accuracy - mean) * (accuracy - mean);
+		}
+
+		return new double[] {((double) count) / total, Math.sqrt(sumOfSquares / (numFolds - 1))};
+	}
+
+	public static void main(String[] args) {
+		String usage = "Usage: CrossValidation featureListFile featureFile [featureFile ...] [-folds n] [-k k1,k2,...] [-out resultsFile]";
+		ArrayList<String> featureFilePaths = new ArrayList<>();
+		int numFolds = NUM_FOLDS;
+		int[] kValues = K_VALUES;
+		String resultsFilePath = RESULTS_FILE_PATH;
+		try {
+			for (int i = 1; i < args.length; i++) {
+				if (args[i].equals("-folds") && i + 1 < args.length) {
+					numFolds = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-k") && i + 1 < args.length) {
+					String[] values = args[++i].split(",");
+					kValues = new int[values.length];
+					for (int q = 0; q < values.length; q++) {
+						kValues[q] = Integer.parseInt(values[q].trim());
+					}
+				} else if (args[i].equals("-out") && i + 1 < args.length) {
+					resultsFilePath = args[++i];
+				} else {
+					featureFilePaths.add(args[i]);
+				}
+			}
+		} catch (NumberFormatException e) {
+			featureFilePaths.clear();
+		}
+		if (args.length < 2 || featureFilePaths.isEmpty()) {
+			System.err.println(usage);
+			return;
+		}
+
+		FeatureMatrix featureData = new FeatureMatrix();
+		ClassLabels featureClassification = new ClassLabels(new ClassDictionary());
+		String columnHeaders = null;
+		try {
+			for (String featureFilePath : featureFilePaths) {
+				String fileColumnHeaders = PcaKnn.readFeatureFile(featureFilePath, featureData, featureClassification);
+				if (columnHeaders != null && !columnHeaders.equals(fileColumnHeaders)) {
+					System.err.println("Features inconsistent between " + featureFilePaths.get(0) + " and " + featureFilePath + " (mismatching headers).");
+					return;
+				}
+				columnHeaders = fileColumnHeaders;
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot read feature file. " + e.getMessage());
+			return;
+		}
+
+		//the same removal order as PcaKnn
+		ArrayList<String> featuresOrderedByVariance = new ArrayList<>();
+		PcaKnn.readFeatureListFile(args[0], featuresOrderedByVariance);
+		Collections.reverse(featuresOrderedByVariance);
+		ArrayList<String> features = PcaKnn.getColumnHeaders(columnHeaders);
+		int[] columnOrder = PcaKnn.getColumnOrder(features, featuresOrderedByVariance);
+		int numFeatures = features.size();
+		int numRows = featuresOrderedByVariance.size();
+
+		ForkJoinPool pool = new ForkJoinPool();
+		long start = System.nanoTime();
+		FoldResult[] foldResults;
+		try {
+			foldResults = new CrossValidation(featureData, featureClassification, columnOrder, kValues, pool).run(numFolds, SEED);
+		} catch (IllegalArgumentException e) {
+			//a k below 1, or more folds than rows
+			System.err.println("Cannot cross-validate. " + e.getMessage());
+			System.err.println(usage);
+			return;
+		} finally {
+			pool.shutdown();
+		}
+		System.out.println(numFolds + "-fold cross-validation of " + featureData.getNumRows() + " rows, k = " + Arrays.toString(kValues) + ", in " + (System.nanoTime() - start) / 1e6 + " ms");
+
+		String bestFeatures = null;
+		String bestComponents = null;
+		double bestFeatureAccuracy = -1;
+		double bestComponentAccuracy = -1;
+		try {
+			BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(resultsFilePath));
+			bufferedWriter.write("Num Removed,Features,Components,K,Features Std Dev,Components Std Dev");
+			bufferedWriter.newLine();
+			for (int q = 0; q < kValues.length; q++) {
+				for (int i = 0; i < numRows; i++) {
+					//as in PcaKnn, row i removes i features, or keeps numFeatures - i components
+					double[] featureAccuracy = getAccuracy(foldResults, false, q, numFeatures - i - 1);
+					double[] componentAccuracy = getAccuracy(foldResults, true, q, numFeatures - i - 1);
+					bufferedWriter.write(i + "," + featureAccuracy[0] + "," + componentAccuracy[0] + "," + kValues[q] + "," + featureAccuracy[1] + "," + componentAccuracy[1]);
+					bufferedWriter.newLine();
+
+					if (featureAccuracy[0] > bestFeatureAccuracy) {
+						bestFeatureAccuracy = featureAccuracy[0];
+						bestFeatures = "k = " + kValues[q] + ", " + i + " features removed";
+					}
+					if (componentAccuracy[0] > bestComponentAccuracy) {
+						bestComponentAccuracy = componentAccuracy[0];
+						bestComponents = "k = " + kValues[q] + ", " + (numFeatures - i) + " components";
+					}
+				}
+			}
+			bufferedWriter.close();
+		} catch (IOException e) {
+			System.err.println("Cannot write results file. " + e.getMessage());
+		}
+
+		System.out.println("Best feature subset: " + bestFeatures + ", accuracy " + bestFeatureAccuracy);
+		System.out.println("Best components: " + bestComponents + ", accuracy " + bestComponentAccuracy);
+	}
+}
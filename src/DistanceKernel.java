@@ -0,0 +1,167 @@
+/*
+ * Squared Euclidean distance between two points, the inner loop of every KNN search.
+ * Neighbors are ranked by squared distance, which orders them the same as the distance itself without a sqrt per pair.
+ * There are several implementations. They sum in different orders, so their distances agree only up to rounding and
+ * two neighbors at nearly the same distance can swap places between kernels:
+ *
+ *   scalar     one multiply-add per element
+ *   unrolled   four independent sums, which the JIT can keep in flight at once and auto-vectorize
+ *   vector     explicit SIMD through jdk.incubator.vector (VectorDistanceKernel, in src-vector)
+ *
+ * The vector kernel is only usable when it was compiled and the JVM was started with
+ * --add-modules jdk.incubator.vector, so it is loaded by name and skipped if it cannot be linked.
+ * The kernel is chosen once at startup by KERNEL, which the pcaknn.distanceKernel system property overrides.
+ * Without the vector kernel, auto picks scalar: C2 already unrolls the simple loop, and on the machines measured with
+ * DistanceKernelBenchmark the hand-unrolled version was no faster.
+ * Each kernel also has a float version for training data stored as floats (see BruteForceIndex).
+ *
+ * @author Scott Weaver
+ */
+import java.util.ArrayList;
+
+public abstract class DistanceKernel {
+	//"scalar", "unrolled", "vector", or "auto" for vector when available and scalar otherwise
+	private static String KERNEL = System.getProperty("pcaknn.distanceKernel", "auto");
+
+	private static DistanceKernel selected;
+
+	public abstract String getName();
+
+	//Squared distance between the n values starting at a[offsetA] and b[offsetB].
+	public abstract double squaredDistance(double[] a, int offsetA, double[] b, int offsetB, int n);
+
+	public abstract float squaredDistance(float[] a, int offsetA, float[] b, int offsetB, int n);
+
+	//The kernel chosen by KERNEL.
+	public static synchronized DistanceKernel getSelected() {
+		if (selected == null) {
+			if (KERNEL.equals("auto")) {
+				selected = loadVectorKernel();
+				if (selected == null) {
+					selected = new Scalar();
+				}
+			} else {
+				selected = forName(KERNEL);
+			}
+		}
+		return selected;
+	}
+
+	public static DistanceKernel forName(String name) {
+		if (name.equals("scalar")) {
+			return new Scalar();
+		} else if (name.equals("unrolled")) {
+			return new Unrolled();
+		} else if (name.equals("vector")) {
+			DistanceKernel kernel = loadVectorKernel();
+			if (kernel == null) {
+				throw new IllegalArgumentException("The vector distance kernel needs --add-modules jdk.incubator.vector.");
+			}
+			return kernel;
+		}
+		throw new IllegalArgumentException("Unknown distance kernel: " + name);
+	}
+
+	//Every kernel that can run in this JVM, the scalar reference first.
+	public static ArrayList<DistanceKernel> getAvailable() {
+		ArrayList<DistanceKernel> kernels = new ArrayList<>();
+		kernels.add(new Scalar());
+		kernels.add(new Unrolled());
+		DistanceKernel vector = loadVectorKernel();
+		if (vector != null) {
+			kernels.add(vector);
+		}
+		return kernels;
+	}
+
+	private static DistanceKernel loadVectorKernel() {
+		try {
+			return (DistanceKernel) Class.forName("VectorDistanceKernel").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			//not compiled, or the jdk.incubator.vector module is not loaded
+			return null;
+		}
+	}
+
+	static class Scalar extends DistanceKernel {
+		@Override
+		public String getName() {
+			return "scalar";
+		}
+
+		@Override
+		public double squaredDistance(double[] a, int offsetA, double[] b, int offsetB, int n) {
+			double sum = 0.0;
+			for (int i = 0; i < n; i++) {
+				double diff = a[offsetA + i] - b[offsetB + i];
+				sum += diff * diff;
+			}
+			return sum;
+		}
+
+		@Override
+		public float squaredDistance(float[] a, int offsetA, float[] b, int offsetB, int n) {
+			float sum = 0.0f;
+			for (int i = 0; i < n; i++) {
+				float diff = a[offsetA + i] - b[offsetB + i];
+				sum += diff * diff;
+			}
+			return sum;
+		}
+	}
+
+	static class Unrolled extends DistanceKernel {
+		@Override
+		public String getName() {
+			return "unrolled";
+		}
+
+		@Override
+		public double squaredDistance(double[] a, int offsetA, double[] b, int offsetB, int n) {
+			double sum0 = 0.0;
+			double sum1 = 0.0;
+			double sum2 = 0.0;
+			double sum3 = 0.0;
+			int i = 0;
+			for (; i + 3 < n; i += 4) {
+				double diff0 = a[offsetA + i] - b[offsetB + i];
+				double diff1 = a[offsetA + i + 1] - b[offsetB + i + 1];
+				double diff2 = a[offsetA + i + 2] - b[offsetB + i + 2];
+				double diff3 = a[offsetA + i + 3] - b[offsetB + i + 3];
+				sum0 += diff0 * diff0;
+				sum1 += diff1 * diff1;
+				sum2 += diff2 * diff2;
+				sum3 += diff3 * diff3;
+			}
+			for (; i < n; i++) {
+				double diff = a[offsetA + i] - b[offsetB + i];
+				sum0 += diff * diff;
+			}
+			return (sum0 + sum1) + (sum2 + sum3);
+		}
+
+		@Override
+		public float squaredDistance(float[] a, int offsetA, float[] b, int offsetB, int n) {
+			float sum0 = 0.0f;
+			float sum1 = 0.0f;
+			float sum2 = 0.0f;
+			float sum3 = 0.0f;
+			int i = 0;
+			for (; i + 3 < n; i += 4) {
+				float diff0 = a[offsetA + i] - b[offsetB + i];
+				float diff1 = a[offsetA + i + 1] - b[offsetB + i + 1];
+				float diff2 = a[offsetA + i + 2] - b[offsetB + i + 2];
+				float diff3 = a[offsetA + i + 3] - b[offsetB + i + 3];
+				sum0 += diff0 * diff0;
+				sum1 += diff1 * diff1;
+				sum2 += diff2 * diff2;
+				sum3 += diff3 * diff3;
+			}
+			for (; i < n; i++) {
+				float diff = a[offsetA + i] - b[offsetB + i];
+				sum0 += diff * diff;
+			}
+			return (sum0 + sum1) + (sum2 + sum3);
+		}
+	}
+}
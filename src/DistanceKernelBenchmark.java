@@ -0,0 +1,150 @@
+/*
+ * Checks and times every DistanceKernel available in this JVM, for doubles and for floats, at several dimensions.
+ * Each kernel ranks the nearest neighbors of every test point by a linear scan, and the ranking must match the scalar
+ * kernel's: the kernels sum in different orders, so the only differences allowed are between neighbors whose reference
+ * distances are equal to within rounding. A mismatch stops the run, so the benchmark doubles as a correctness test.
+ * Run with --add-modules jdk.incubator.vector to include the vector kernel.
+ *
+ * Usage: DistanceKernelBenchmark [numTrainingData] [numTestData] [k]
+ *
+ * @author Scott Weaver
+ */
+import java.util.ArrayList;
+import java.util.Random;
+
+public class DistanceKernelBenchmark {
+
+	private static int[] DIMENSIONS = {4, 8, 16, 33, 64, 128};
+	private static int NUM_REPEATS = 5;
+	//relative difference below which two reference distances count as a tie
+	private static double DOUBLE_TOLERANCE = 1e-12;
+	private static double FLOAT_TOLERANCE = 1e-5;
+
+	public static void main(String[] args) {
+		int numTrainingData = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int numTestData = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int k = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		ArrayList<DistanceKernel> kernels = DistanceKernel.getAvailable();
+		DistanceKernel reference = kernels.get(0);
+		System.out.println("Training Data: " + numTrainingData + ", Test Data: " + numTestData + ", k = " + k + ", selected kernel: " + DistanceKernel.getSelected().getName());
+		StringBuilder header = new StringBuilder("Dimensions");
+		for (DistanceKernel kernel : kernels) {
+			header.append("," + kernel.getName() + " double (ms)," + kernel.getName() + " float (ms)");
+		}
+		System.out.println(header);
+
+		for (int numDimensions : DIMENSIONS) {
+			Random random = new Random(numDimensions);
+			double[] trainingData = generateData(random, numTrainingData * numDimensions);
+			double[] testData = generateData(random, numTestData * numDimensions);
+			float[] floatTrainingData = toFloats(trainingData);
+			float[] floatTestData = toFloats(testData);
+
+			StringBuilder line = new StringBuilder(Integer.toString(numDimensions));
+			for (DistanceKernel kernel : kernels) {
+				checkSameRanking(reference, kernel, trainingData, testData, floatTrainingData, floatTestData, numDimensions, k);
+
+				double doubleMillis = Double.MAX_VALUE;
+				double floatMillis = Double.MAX_VALUE;
+				for (int repeat = 0; repeat < NUM_REPEATS; repeat++) {
+					doubleMillis = Math.min(doubleMillis, timeScan(kernel, trainingData, testData, null, null, numDimensions, k));
+					floatMillis = Math.min(floatMillis, timeScan(kernel, null, null, floatTrainingData, floatTestData, numDimensions, k));
+				}
+				line.append(String.format(",%.2f,%.2f", doubleMillis, floatMillis));
+			}
+			System.out.println(line);
+		}
+		System.out.println("All kernels rank neighbors the same as the scalar kernel.");
+	}
+
+	private static double[] generateData(Random random, int size) {
+		double[] data = new double[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = random.nextGaussian();
+		}
+		return data;
+	}
+
+	private static float[] toFloats(double[] data) {
+		float[] floats = new float[data.length];
+		for (int i = 0; i < data.length; i++) {
+			floats[i] = (float) data[i];
+		}
+		return floats;
+	}
+
+	//Fills selector with the k nearest training points of test point t, using the double arrays unless they are null.
+	private static void scan(DistanceKernel kernel, double[] trainingData, double[] testData, float[] floatTrainingData, float[] floatTestData, int numDimensions, int t, TopKSelector selector) {
+		selector.clear();
+		if (trainingData != null) {
+			int numTrainingData = trainingData.length / numDimensions;
+			for (int i = 0; i < numTrainingData; i++) {
+				selector.offer(i, kernel.squaredDistance(testData, t * numDimensions, trainingData, i * numDimensions, numDimensions));
+			}
+		} else {
+			int numTrainingData = floatTrainingData.length / numDimensions;
+			for (int i = 0; i < numTrainingData; i++) {
+				selector.offer(i, kernel.squaredDistance(floatTestData, t * numDimensions, floatTrainingData, i * numDimensions, numDimensions));
+			}
+		}
+		selector.sort();
+	}
+
+	private static double timeScan(DistanceKernel kernel, double[] trainingData, double[] testData, float[] floatTrainingData, float[] floatTestData, int numDimensions, int k) {
+		TopKSelector selector = new TopKSelector(k);
+		int numTestData = (testData != null ? testData.length : floatTestData.length) / numDimensions;
+		long checksum = 0;
+
+		long start = System.nanoTime();
+		for (int t = 0; t < numTestData; t++) {
+			scan(kernel, trainingData, testData, floatTrainingData, floatTestData, numDimensions, t, selector);
+			checksum += selector.getIndex(0);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		if (checksum < 0) {
+			System.out.println(checksum);
+		}
+		return elapsed / 1e6;
+	}
+
+	private static void checkSameRanking(DistanceKernel reference, DistanceKernel kernel, double[] trainingData, double[] testData, float[] floatTrainingData, float[] floatTestData, int numDimensions, int k) {
+		TopKSelector expected = new TopKSelector(k);
+		TopKSelector actual = new TopKSelector(k);
+		int numTestData = testData.length / numDimensions;
+
+		for (int t = 0; t < numTestData; t++) {
+			scan(reference, trainingData, testData, null, null, numDimensions, t, expected);
+			scan(kernel, trainingData, testData, null, null, numDimensions, t, actual);
+			compareRanking(reference, kernel, "double", expected, actual, trainingData, testData, null, null, numDimensions, t, DOUBLE_TOLERANCE);
+
+			scan(reference, null, null, floatTrainingData, floatTestData, numDimensions, t, expected);
+			scan(kernel, null, null, floatTrainingData, floatTestData, numDimensions, t, actual);
+			compareRanking(reference, kernel, "float", expected, actual, null, null, floatTrainingData, floatTestData, numDimensions, t, FLOAT_TOLERANCE);
+		}
+	}
+
+	private static void compareRanking(DistanceKernel reference, DistanceKernel kernel, String type, TopKSelector expected, TopKSelector actual, double[] trainingData, double[] testData, float[] floatTrainingData, float[] floatTestData, int numDimensions, int t, double tolerance) {
+		for (int i = 0; i < expected.size(); i++) {
+			int expectedIndex = expected.getIndex(i);
+			int actualIndex = actual.getIndex(i);
+			if (expectedIndex == actualIndex) {
+				continue;
+			}
+
+			double expectedDistance;
+			double actualDistance;
+			if (trainingData != null) {
+				expectedDistance = reference.squaredDistance(testData, t * numDimensions, trainingData, expectedIndex * numDimensions, numDimensions);
+				actualDistance = reference.squaredDistance(testData, t * numDimensions, trainingData, actualIndex * numDimensions, numDimensions);
+			} else {
+				expectedDistance = reference.squaredDistance(floatTestData, t * numDimensions, floatTrainingData, expectedIndex * numDimensions, numDimensions);
+				actualDistance = reference.squaredDistance(floatTestData, t * numDimensions, floatTrainingData, actualIndex * numDimensions, numDimensions);
+			}
+			if (Math.abs(expectedDistance - actualDistance) > tolerance * expectedDistance) {
+				throw new IllegalStateException(kernel.getName() + " " + type + " kernel, " + numDimensions + " dimensions, test point " + t + ": neighbor " + i + " differs: " + expectedIndex + " != " + actualIndex);
+			}
+		}
+	}
+}
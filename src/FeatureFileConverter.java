@@ -0,0 +1,65 @@
+/*
+ * Converts feature CSV files to the binary feature file format (see BinaryFeatureFile).
+ * Each input.csv is written next to itself as input.bin.
+ *
+ * Usage: FeatureFileConverter [-float] [file.csv ...]
+ * With no files, every CSV file in Data/TrainingData and Data/TestData is converted.
+ * -float stores the values as floats, halving the size of the file.
+ *
+ * @author Scott Weaver
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class FeatureFileConverter {
+
+	private static String[] DEFAULT_DIRECTORIES = {"Data/TrainingData", "Data/TestData"};
+
+	public static void main(String[] args) {
+		boolean useFloats = false;
+		ArrayList<String> csvFilePaths = new ArrayList<>();
+
+		for (String arg : args) {
+			if (arg.equals("-float")) {
+				useFloats = true;
+			} else {
+				csvFilePaths.add(arg);
+			}
+		}
+
+		if (csvFilePaths.isEmpty()) {
+			for (String directory : DEFAULT_DIRECTORIES) {
+				File[] files = new File(directory).listFiles();
+				if (files == null) {
+					continue;
+				}
+				Arrays.sort(files);
+				for (File file : files) {
+					if (file.getName().endsWith(".csv")) {
+						csvFilePaths.add(file.getPath());
+					}
+				}
+			}
+		}
+
+		for (String csvFilePath : csvFilePaths) {
+			String binaryFilePath = csvFilePath.replaceFirst("(\\.csv)?$", ".bin");
+			try {
+				convert(csvFilePath, binaryFilePath, useFloats);
+				System.out.println(csvFilePath + " -> " + binaryFilePath);
+			} catch (IOException e) {
+				System.err.println("Cannot convert feature file. " + e.getMessage());
+			}
+		}
+	}
+
+	public static void convert(String csvFilePath, String binaryFilePath, boolean useFloats) throws IOException {
+		FeatureMatrix featureData = new FeatureMatrix();
+		ClassLabels featureClassification = new ClassLabels(new ClassDictionary());
+
+		String columnHeaders = FeatureFileReader.read(csvFilePath, featureData, featureClassification);
+		BinaryFeatureFile.write(binaryFilePath, columnHeaders, featureData, featureClassification, useFloats);
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Reads feature CSV files (classification followed by one number per feature on each line) straight from bytes.
+ * The file is read through a FileChannel in large chunks and each row is parsed in place: numbers are converted by a
+ * hand-written parser and classification names are only decoded when they change from the previous row, so no Strings
+ * are created for the numeric cells. Rows are appended to a growable FeatureMatrix.
+ * Malformed rows are reported with their line number through a FeatureFileException.
+ * Files too large for memory can be read in chunks of rows handed to a ChunkHandler, so only one chunk is held at a time.
+ *
+ * @author Scott Weaver
+ */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class FeatureFileReader {
+	private static int CHUNK_SIZE = 1 << 20;
+
+	//powers of ten that are exact as doubles, for the fast path of parseDouble
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1.0;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+		}
+	}
+
+	public static class FeatureFileException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public FeatureFileException(String featureFilePath, long lineNumber, String message) {
+			super(featureFilePath + ":" + lineNumber + ": " + message);
+		}
+	}
+
+	//Receives the rows of a file read in chunks. The chunk is not reused after the call returns.
+	public interface ChunkHandler {
+		void handleChunk(FeatureMatrix chunkData, ClassLabels chunkClassification) throws IOException;
+	}
+
+	private final String featureFilePath;
+	private FeatureMatrix featureData;
+	private ClassLabels featureClassification;
+	//set when the file is read in chunks of chunkSize rows
+	private ChunkHandler chunkHandler;
+	private int chunkSize;
+
+	private String columnHeaders;
+	private double[] row;
+	private long lineNumber;
+
+	//label of the previous row, to skip decoding and looking up repeated classifications
+	private byte[] previousLabel = new byte[0];
+	private int previousLabelLength = -1;
+	private int previousLabelId;
+
+	private FeatureFileReader(String featureFilePath, FeatureMatrix featureData, ClassLabels featureClassification) {
+		this.featureFilePath = featureFilePath;
+		this.featureData = featureData;
+		this.featureClassification = featureClassification;
+	}
+
+	//Appends every row of the file to featureData and its classification to featureClassification. Returns the header line.
+	public static String read(String featureFilePath, FeatureMatrix featureData, ClassLabels featureClassification) throws IOException {
+		FeatureFileReader reader = new FeatureFileReader(featureFilePath, featureData, featureClassification);
+		reader.read();
+		return reader.columnHeaders;
+	}
+
+	//Passes the rows of the file to handler chunkSize rows at a time (fewer in the last chunk), with classifications from dictionary. Returns the header line.
+	public static String read(String featureFilePath, ClassDictionary dictionary, int chunkSize, ChunkHandler handler) throws IOException {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1: " + chunkSize);
+		}
+		FeatureFileReader reader = new FeatureFileReader(featureFilePath, new FeatureMatrix(), new ClassLabels(dictionary));
+		reader.chunkHandler = handler;
+		reader.chunkSize = chunkSize;
+		reader.read();
+		reader.flushChunk();
+		return reader.columnHeaders;
+	}
+
+	private void flushChunk() throws IOException {
+		if (featureData.getNumRows() > 0) {
+			chunkHandler.handleChunk(featureData, featureClassification);
+			featureData = new FeatureMatrix();
+			featureClassification = new ClassLabels(featureClassification.getDictionary());
+		}
+	}
+
+	private void read() throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(featureFilePath, "r"); FileChannel channel = file.getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			byte[] bytes = buffer.array();
+			boolean endOfFile = false;
+
+			while (!endOfFile) {
+				endOfFile = channel.read(buffer) < 0;
+				int limit = buffer.position();
+				int lineStart = 0;
+
+				for (int i = 0; i < limit; i++) {
+					if (bytes[i] == '\n') {
+						parseLine(bytes, lineStart, i);
+						lineStart = i + 1;
+					}
+				}
+
+				if (endOfFile) {
+					if (lineStart < limit) {
+						parseLine(bytes, lineStart, limit);
+					}
+				} else if (lineStart == 0 && limit == bytes.length) {
+					//a single line longer than the buffer; grow it and keep reading
+					byte[] larger = Arrays.copyOf(bytes, 2 * bytes.length);
+					buffer = ByteBuffer.wrap(larger);
+					buffer.position(limit);
+					bytes = larger;
+				} else {
+					//move the partial last line to the front of the buffer
+					System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+					buffer.position(limit - lineStart);
+				}
+			}
+		}
+
+		if (columnHeaders == null) {
+			throw new FeatureFileException(featureFilePath, 1, "missing column headers");
+		}
+	}
+
+	private void parseLine(byte[] bytes, int start, int end) throws IOException {
+		lineNumber++;
+		if (end > start && bytes[end - 1] == '\r') {
+			end--;
+		}
+
+		if (columnHeaders == null) {
+			columnHeaders = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+			int numColumns = 0;
+			for (int i = start; i < end; i++) {
+				if (bytes[i] == ',') {
+					numColumns++;
+				}
+			}
+			row = new double[numColumns];
+			return;
+		}
+
+		if (end == start) {
+			//blank lines (such as a trailing newline) are not rows
+			return;
+		}
+
+		int comma = start;
+		while (comma < end && bytes[comma] != ',') {
+			comma++;
+		}
+		if (comma == end) {
+			throw new FeatureFileException(featureFilePath, lineNumber, "expected " + row.length + " features, found none");
+		}
+
+		int column = 0;
+		int cellStart = comma + 1;
+		for (int i = cellStart; i <= end; i++) {
+			if (i == end || bytes[i] == ',') {
+				if (column == row.length) {
+					throw new FeatureFileException(featureFilePath, lineNumber, "expected " + row.length + " features, found more");
+				}
+				row[column] = parseDouble(bytes, cellStart, i, column);
+				column++;
+				cellStart = i + 1;
+			}
+		}
+		if (column < row.length) {
+			throw new FeatureFileException(featureFilePath, lineNumber, "expected " + row.length + " features, found " + column);
+		}
+
+		featureData.addRow(row);
+		addLabel(bytes, start, comma);
+		if (chunkHandler != null && featureData.getNumRows() == chunkSize) {
+			flushChunk();
+		}
+	}
+
+	private void addLabel(byte[] bytes, int start, int end) {
+		int length = end - start;
+		boolean same = length == previousLabelLength;
+		for (int i = 0; same && i < length; i++) {
+			same = bytes[start + i] == previousLabel[i];
+		}
+
+		if (!same) {
+			String classification = new String(bytes, start, length, StandardCharsets.UTF_8);
+			previousLabelId = featureClassification.getDictionary().getId(classification);
+			previousLabel = Arrays.copyOfRange(bytes, start, end);
+			previousLabelLength = length;
+		}
+		featureClassification.addId(previousLabelId);
+	}
+
+	//Parses a decimal number such as -0.123e-4. Numbers with at most 15 significant digits and a small exponent are
+	//converted exactly (Clinger's fast path), anything else goes through Double.parseDouble, so the result always
+	//matches Double.parseDouble.
+	private double parseDouble(byte[] bytes, int start, int end, int column) throws FeatureFileException {
+		int i = start;
+		while (i < end && bytes[i] == ' ') {
+			i++;
+		}
+		while (end > i && bytes[end - 1] == ' ') {
+			end--;
+		}
+
+		boolean negative = false;
+		if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+			negative = bytes[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int numDigits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+
+		while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+			anyDigits = true;
+			if (mantissa != 0 || bytes[i] != '0') {
+				mantissa = mantissa * 10 + (bytes[i] - '0');
+				numDigits++;
+			}
+			i++;
+		}
+		if (i < end && bytes[i] == '.') {
+			i++;
+			while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+				anyDigits = true;
+				if (mantissa != 0 || bytes[i] != '0') {
+					mantissa = mantissa * 10 + (bytes[i] - '0');
+					numDigits++;
+				}
+				exponent--;
+				i++;
+			}
+		}
+		if (anyDigits && i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+				negativeExponent = bytes[i] == '-';
+				i++;
+			}
+			int explicitExponent = 0;
+			boolean anyExponentDigits = false;
+			while (i < end && bytes[i] >= '0' && bytes[i] <= '9' && explicitExponent < 10000) {
+				explicitExponent = explicitExponent * 10 + (bytes[i] - '0');
+				anyExponentDigits = true;
+				i++;
+			}
+			if (!anyExponentDigits) {
+				anyDigits = false;
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+
+		if (anyDigits && i == end && numDigits <= 15 && Math.abs(exponent) < POWERS_OF_TEN.length) {
+			double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+			return negative ? -value : value;
+		}
+
+		//too many digits, a large exponent or not a plain decimal number (NaN, Infinity, or malformed)
+		String cell = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+		try {
+			return Double.parseDouble(cell);
+		} catch (NumberFormatException e) {
+			throw new FeatureFileException(featureFilePath, lineNumber, "feature " + (column + 1) + " is not a number: \"" + cell + "\"");
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Dense matrix of feature data, one row per data point, stored row-major in a single double[].
+ * Row r occupies data[r * numColumns] to data[(r + 1) * numColumns - 1], so a scan over the rows reads memory
+ * sequentially. Matrices built by addRow grow like an ArrayList; the backing array may be longer than
+ * numRows * numColumns.
+ *
+ * @author Scott Weaver
+ */
+import java.util.Arrays;
+
+public class FeatureMatrix {
+	private int numRows;
+	private int numColumns;
+	private double[] data;
+
+	//Creates an empty matrix for addRow. The number of columns is taken from the first row added.
+	public FeatureMatrix() {
+		this.numColumns = -1;
+		this.data = new double[0];
+	}
+
+	//Creates a numRows x numColumns matrix of zeros.
+	public FeatureMatrix(int numRows, int numColumns) {
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+		this.data = new double[numRows * numColumns];
+	}
+
+	//Wraps data (not copied) as a numRows x numColumns matrix.
+	public FeatureMatrix(double[] data, int numRows, int numColumns) {
+		if (data.length < numRows * numColumns) {
+			throw new IllegalArgumentException("Array of length " + data.length + " is too short for a " + numRows + " x " + numColumns + " matrix.");
+		}
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+		this.data = data;
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumColumns() {
+		return Math.max(numColumns, 0);
+	}
+
+	//The backing array. Row r starts at getRowOffset(r).
+	public double[] getData() {
+		return data;
+	}
+
+	public int getRowOffset(int row) {
+		return row * numColumns;
+	}
+
+	public double get(int row, int column) {
+		return data[row * numColumns + column];
+	}
+
+	public void set(int row, int column, double value) {
+		data[row * numColumns + column] = value;
+	}
+
+	//Returns a copy of a single row.
+	public double[] getRow(int row) {
+		int offset = row * numColumns;
+		return Arrays.copyOfRange(data, offset, offset + numColumns);
+	}
+
+	public void addRow(double[] row) {
+		int offset = addZeroRows(1, row.length);
+		System.arraycopy(row, 0, data, offset, numColumns);
+	}
+
+	//Appends count rows of zeros with rowLength columns and returns the offset of the first one in getData(),
+	//so callers can fill the new rows in place.
+	public int addZeroRows(int count, int rowLength) {
+		if (numColumns < 0) {
+			numColumns = rowLength;
+		} else if (rowLength != numColumns) {
+			throw new IllegalArgumentException("Row has " + rowLength + " columns, expected " + numColumns + ".");
+		}
+
+		int offset = numRows * numColumns;
+		int end = offset + count * numColumns;
+		if (end > data.length) {
+			data = Arrays.copyOf(data, Math.max(end, 2 * data.length));
+		}
+		numRows += count;
+		return offset;
+	}
+
+	//Returns a new matrix with the first numColumnsKept columns of each row.
+	public FeatureMatrix truncateColumns(int numColumnsKept) {
+		FeatureMatrix truncated = new FeatureMatrix(numRows, numColumnsKept);
+
+		for (int r = 0; r < numRows; r++) {
+			System.arraycopy(data, r * numColumns, truncated.data, r * numColumnsKept, numColumnsKept);
+		}
+
+		return truncated;
+	}
+}
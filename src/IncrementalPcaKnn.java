@@ -0,0 +1,281 @@
+/*
+ * PCA + KNN classifier that absorbs new labelled training data without retraining from scratch.
+ * New rows are added to a running CovarianceAccumulator, projected with the current basis (the top numComponents
+ * eigenvectors and the mean they were fitted with) and appended to the KNN store; rows already in the store are left
+ * alone. Distances do not depend on which mean or which rotation within the subspace is used, only on every row and
+ * query using the same ones, so the store stays consistent until the subspace itself moves.
+ *
+ * Once the training set has grown by REFRESH_FRACTION since the last refresh, the basis is refreshed with a few steps of
+ * subspace iteration on the updated covariance, warm-started from the current eigenvectors, which is much cheaper than
+ * a full decomposition. The refreshed basis is only adopted, and the whole store reprojected, when more than
+ * DRIFT_THRESHOLD of it lies outside the current subspace.
+ *
+ * Usage: IncrementalPcaKnn trainingFile testFile [numComponents] [batchSize] [k]
+ * Adds the training file in shuffled batches and reports basis changes and test accuracy after each batch.
+ *
+ * @author Scott Weaver
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+public class IncrementalPcaKnn {
+	//refresh the basis once the training set has grown by this fraction since the last refresh
+	private static double REFRESH_FRACTION = 0.1;
+	//adopt a refreshed basis when this fraction of it lies outside the current subspace
+	private static double DRIFT_THRESHOLD = 0.01;
+	private static int SUBSPACE_ITERATIONS = 3;
+
+	private final int numFeatures;
+	private final int numComponents;
+	private final int k;
+
+	private final CovarianceAccumulator accumulator;
+	private final FeatureMatrix trainingData = new FeatureMatrix();
+	private final ClassLabels trainingClassification;
+	private FeatureMatrix projectedTrainingData = new FeatureMatrix();
+
+	//numFeatures x numComponents, columns sorted by descending eigenvalue; null until two rows have been added
+	private Matrix basis;
+	private double[] basisMean;
+	private double[] eigenValues;
+	private long countAtLastRefresh;
+	private int numBasisChanges;
+
+	//rebuilt on the next classification after the store changes
+	private NeighborIndex neighborIndex;
+
+	public IncrementalPcaKnn(int numFeatures, int numComponents, int k, ClassDictionary dictionary) {
+		if (numComponents < 1 || numComponents > numFeatures) {
+			throw new IllegalArgumentException("Number of components must be between 1 and " + numFeatures + ": " + numComponents);
+		}
+		this.numFeatures = numFeatures;
+		this.numComponents = numComponents;
+		this.k = k;
+		this.accumulator = new CovarianceAccumulator(numFeatures);
+		this.trainingClassification = new ClassLabels(dictionary);
+	}
+
+	public int getNumTrainingData() {
+		return trainingData.getNumRows();
+	}
+
+	//True once there is a basis to classify with.
+	public boolean isReady() {
+		return basis != null;
+	}
+
+	//Number of times the store was reprojected onto a new basis, not counting the first fit.
+	public int getNumBasisChanges() {
+		return numBasisChanges;
+	}
+
+	public double[] getEigenValues() {
+		return eigenValues.clone();
+	}
+
+	//Adds the rows of newData with their classifications. Returns true if the basis changed and the whole store was reprojected.
+	public boolean addRows(FeatureMatrix newData, ClassLabels newClassification) {
+		int numNewRows = newData.getNumRows();
+		if (numNewRows == 0) {
+			return false;
+		}
+		if (newData.getNumColumns() != numFeatures) {
+			throw new IllegalArgumentException("Rows have " + newData.getNumColumns() + " features, expected " + numFeatures + ".");
+		}
+
+		accumulator.addRows(newData, 0, numNewRows);
+		int firstNewRow = trainingData.getNumRows();
+		int offset = trainingData.addZeroRows(numNewRows, numFeatures);
+		System.arraycopy(newData.getData(), 0, trainingData.getData(), offset, numNewRows * numFeatures);
+		for (int i = 0; i < numNewRows; i++) {
+			trainingClassification.addId(newClassification.getId(i));
+		}
+		neighborIndex = null;
+
+		if (basis == null) {
+			if (accumulator.getCount() < 2) {
+				return false;
+			}
+			//nothing to warm-start from yet
+			PcaModel pcaModel = new PcaModel(accumulator.getCovarianceMatrix());
+			eigenValues = new double[numComponents];
+			for (int j = 0; j < numComponents; j++) {
+				eigenValues[j] = pcaModel.getEigenValue(j);
+			}
+			adoptBasis(pcaModel.getEigenvectorMatrix(numComponents).copy());
+			return true;
+		}
+
+		projectRows(firstNewRow);
+		if (accumulator.getCount() - countAtLastRefresh >= REFRESH_FRACTION * countAtLastRefresh) {
+			return refresh();
+		}
+		return false;
+	}
+
+	//Refreshes the basis from the current covariance. Returns true if it had drifted enough to be adopted, in which case
+	//getEigenValues() returns the refreshed eigenvalues; otherwise the basis and its eigenvalues are left as they were.
+	public boolean refresh() {
+		if (basis == null) {
+			throw new IllegalStateException("At least two training rows are needed before refreshing.");
+		}
+		Matrix covariance = new Matrix(accumulator.getCovarianceMatrix());
+		countAtLastRefresh = accumulator.getCount();
+
+		//subspace iteration from the current basis, then Rayleigh-Ritz for the eigenpairs within the subspace
+		Matrix q = basis;
+		for (int i = 0; i < SUBSPACE_ITERATIONS; i++) {
+			q = covariance.times(q).qr().getQ();
+		}
+		EigenvalueDecomposition evd = new EigenvalueDecomposition(q.transpose().times(covariance).times(q));
+		final double[] ritzValues = evd.getRealEigenvalues();
+		Integer[] order = new Integer[numComponents];
+		for (int j = 0; j < numComponents; j++) {
+			order[j] = j;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer j1, Integer j2) {
+				return Double.compare(ritzValues[j2], ritzValues[j1]);
+			}
+		});
+		int[] columns = new int[numComponents];
+		double[] refreshedEigenValues = new double[numComponents];
+		for (int j = 0; j < numComponents; j++) {
+			columns[j] = order[j];
+			refreshedEigenValues[j] = ritzValues[order[j]];
+		}
+		Matrix refreshed = q.times(evd.getV().getMatrix(0, numComponents - 1, columns));
+
+		//||basis' refreshed||^2 is numComponents when the two span the same subspace
+		double overlap = basis.transpose().times(refreshed).normF();
+		double drift = 1.0 - overlap * overlap / numComponents;
+		if (drift <= DRIFT_THRESHOLD) {
+			return false;
+		}
+
+		eigenValues = refreshedEigenValues;
+		adoptBasis(refreshed);
+		numBasisChanges++;
+		return true;
+	}
+
+	private void adoptBasis(Matrix newBasis) {
+		basis = newBasis;
+		basisMean = accumulator.getMean();
+		countAtLastRefresh = accumulator.getCount();
+
+		projectedTrainingData = new FeatureMatrix();
+		projectRows(0);
+		neighborIndex = null;
+	}
+
+	//Projects the training rows from firstRow on into the store with the current basis.
+	private void projectRows(int firstRow) {
+		int numRows = trainingData.getNumRows();
+		projectedTrainingData.addZeroRows(numRows - firstRow, numComponents);
+
+		double[][] basisArray = basis.getArray();
+		for (int r = firstRow; r < numRows; r++) {
+			PcaKnnModel.project(trainingData.getData(), trainingData.getRowOffset(r), basisMean, basisArray, projectedTrainingData.getData(), projectedTrainingData.getRowOffset(r));
+		}
+	}
+
+	//Classifies a single window of numFeatures values with the current basis and store.
+	public String classify(double[] window) {
+		if (basis == null) {
+			throw new IllegalStateException("At least two training rows are needed before classifying.");
+		}
+		if (neighborIndex == null) {
+			if (numComponents <= PcaKnn.KD_TREE_MAX_DIMENSIONS) {
+				neighborIndex = new KdTree(projectedTrainingData);
+			} else {
+				neighborIndex = new BruteForceIndex(projectedTrainingData);
+			}
+		}
+
+		double[] projected = new double[numComponents];
+		PcaKnnModel.project(window, 0, basisMean, basis.getArray(), projected, 0);
+
+		TopKSelector selector = new TopKSelector(k);
+		neighborIndex.search(projected, 0, selector);
+		BatchClassifier.Result result = new BatchClassifier.Result(1);
+		BatchClassifier.vote(selector, trainingClassification, new int[trainingClassification.getDictionary().size()], result, 0);
+
+		return trainingClassification.getDictionary().getName(result.predictedClassification[0]);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: IncrementalPcaKnn trainingFile testFile [numComponents] [batchSize] [k]");
+			return;
+		}
+
+		try {
+			ClassDictionary dictionary = new ClassDictionary();
+			FeatureMatrix trainingData = new FeatureMatrix();
+			ClassLabels trainingClassification = new ClassLabels(dictionary);
+			FeatureMatrix testData = new FeatureMatrix();
+			ClassLabels testClassification = new ClassLabels(dictionary);
+			PcaKnn.readFeatureFile(args[0], trainingData, trainingClassification);
+			PcaKnn.readFeatureFile(args[1], testData, testClassification);
+
+			int numFeatures = trainingData.getNumColumns();
+			int numComponents = args.length > 2 ? Integer.parseInt(args[2]) : numFeatures;
+			int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+			int k = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+			//shuffle the training rows so that each batch looks like new data from the same roads
+			ArrayList<Integer> order = new ArrayList<>();
+			for (int i = 0; i < trainingData.getNumRows(); i++) {
+				order.add(i);
+			}
+			Collections.shuffle(order, new Random(0));
+
+			IncrementalPcaKnn classifier = new IncrementalPcaKnn(numFeatures, numComponents, k, dictionary);
+			for (int start = 0; start < order.size(); start += batchSize) {
+				FeatureMatrix batch = new FeatureMatrix();
+				ClassLabels batchClassification = new ClassLabels(dictionary);
+				for (int i = start; i < Math.min(order.size(), start + batchSize); i++) {
+					batch.addRow(trainingData.getRow(order.get(i)));
+					batchClassification.addId(trainingClassification.getId(order.get(i)));
+				}
+
+				long startTime = System.nanoTime();
+				boolean basisChanged = classifier.addRows(batch, batchClassification);
+				long updateTime = System.nanoTime() - startTime;
+				if (!classifier.isReady()) {
+					continue;
+				}
+
+				int count = 0;
+				for (int i = 0; i < testData.getNumRows(); i++) {
+					if (classifier.classify(testData.getRow(i)).equals(testClassification.getName(i))) {
+						count++;
+					}
+				}
+				System.out.println(classifier.getNumTrainingData() + " rows\t" + (basisChanged ? "new basis" : "same basis") + "\tupdate " + updateTime / 1e3 + " us\tAccuracy: " + count + "/" + testData.getNumRows() + " = " + ((double) count) / testData.getNumRows());
+			}
+
+			//the incremental eigenvalues should track a decomposition of the whole training set
+			PcaModel exact = new PcaModel(Utilities.getCovarianceAccumulator(trainingData, numFeatures, ForkJoinPool.commonPool()).getCovarianceMatrix());
+			double[] exactEigenValues = new double[numComponents];
+			for (int j = 0; j < numComponents; j++) {
+				exactEigenValues[j] = exact.getEigenValue(j);
+			}
+			System.out.println("Basis changes: " + classifier.getNumBasisChanges());
+			System.out.println("Incremental eigenvalues: " + Arrays.toString(classifier.getEigenValues()));
+			System.out.println("Exact eigenvalues:       " + Arrays.toString(exactEigenValues));
+		} catch (IOException e) {
+			System.err.println("Cannot read feature file. " + e.getMessage());
+		}
+	}
+}
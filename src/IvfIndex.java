@@ -0,0 +1,192 @@
+/*
+ * Approximate k-nearest neighbor search with an inverted file: the training points are clustered into cells by k-means
+ * and a query only scans the points of the numProbes cells whose centers are nearest to it. Neighbors in cells that are
+ * not probed are missed, so probing more cells trades speed for recall; probing every cell is an exact search.
+ * The points of each cell are copied next to each other, so a probe reads one contiguous block.
+ *
+ * k-means is run on a sample of at most SAMPLE_SIZE_PER_CELL points per cell, then every point is assigned to its
+ * nearest center, so building stays cheap on large training sets. The clustering is seeded, so it is repeatable.
+ * An index over no points has no cells, and every search on it finds nothing.
+ *
+ * @author Scott Weaver
+ */
+import java.util.Arrays;
+import java.util.Random;
+
+public class IvfIndex {
+	private static int MAX_ITERATIONS = 20;
+	private static int SAMPLE_SIZE_PER_CELL = 64;
+
+	private final int numDimensions;
+	private final int numCells;
+	//numCells x numDimensions, row-major
+	private final double[] centers;
+	//the training points ordered by cell, and the training index of each
+	private final double[] cellData;
+	private final int[] cellIndex;
+	//the points of cell c are cellStart[c] to cellStart[c + 1] - 1 of cellData
+	private final int[] cellStart;
+
+	public IvfIndex(FeatureMatrix fullData, int numCells, long seed) {
+		int fullDataSize = fullData.getNumRows();
+		this.numDimensions = fullData.getNumColumns();
+		this.numCells = Math.min(Math.max(1, numCells), fullDataSize);
+		this.centers = cluster(fullData, this.numCells, new Random(seed));
+
+		//assign every point to its nearest center and lay the cells out one after another
+		int[] cell = new int[fullDataSize];
+		cellStart = new int[this.numCells + 1];
+		for (int i = 0; i < fullDataSize; i++) {
+			cell[i] = getNearestCenter(centers, this.numCells, fullData.getData(), fullData.getRowOffset(i), numDimensions);
+			cellStart[cell[i] + 1]++;
+		}
+		for (int c = 0; c < this.numCells; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+
+		cellData = new double[fullDataSize * numDimensions];
+		cellIndex = new int[fullDataSize];
+		int[] position = cellStart.clone();
+		for (int i = 0; i < fullDataSize; i++) {
+			int p = position[cell[i]]++;
+			System.arraycopy(fullData.getData(), fullData.getRowOffset(i), cellData, p * numDimensions, numDimensions);
+			cellIndex[p] = i;
+		}
+	}
+
+	public int getNumCells() {
+		return numCells;
+	}
+
+	//Returns a search that probes the numProbes nearest cells. All searches share this index.
+	public NeighborIndex withProbes(final int numProbes) {
+		if (numProbes < 1) {
+			throw new IllegalArgumentException("Number of probes must be at least 1: " + numProbes);
+		}
+		return new NeighborIndex() {
+			@Override
+			public void search(double[] testData, int testOffset, TopKSelector selector) {
+				IvfIndex.this.search(testData, testOffset, selector, Math.min(numProbes, numCells));
+			}
+		};
+	}
+
+	private void search(double[] testData, int testOffset, TopKSelector selector, int numProbes) {
+		if (numCells == 0) {
+			selector.clear();
+			return;
+		}
+		TopKSelector nearestCells = new TopKSelector(numProbes);
+		for (int c = 0; c < numCells; c++) {
+			nearestCells.offer(c, Utilities.calculateSquaredDistance(testData, testOffset, centers, c * numDimensions, numDimensions));
+		}
+
+		selector.clear();
+		for (int probe = 0; probe < nearestCells.size(); probe++) {
+			int c = nearestCells.getIndex(probe);
+			for (int p = cellStart[c]; p < cellStart[c + 1]; p++) {
+				selector.offer(cellIndex[p], Utilities.calculateSquaredDistance(testData, testOffset, cellData, p * numDimensions, numDimensions));
+			}
+		}
+		selector.sort();
+	}
+
+	//Lloyd's k-means on a sample of the points, started with k-means++. Returns the numCells centers, row-major, or no
+	//centers when there are no points.
+	static double[] cluster(FeatureMatrix fullData, int numCells, Random random) {
+		int fullDataSize = fullData.getNumRows();
+		int numDimensions = fullData.getNumColumns();
+		if (fullDataSize == 0 || numCells < 1) {
+			return new double[0];
+		}
+		int sampleSize = (int) Math.min(fullDataSize, (long) numCells * SAMPLE_SIZE_PER_CELL);
+
+		//a partial Fisher-Yates shuffle picks the sample
+		int[] order = new int[fullDataSize];
+		for (int i = 0; i < fullDataSize; i++) {
+			order[i] = i;
+		}
+		double[] sample = new double[sampleSize * numDimensions];
+		for (int i = 0; i < sampleSize; i++) {
+			int j = i + random.nextInt(fullDataSize - i);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+			System.arraycopy(fullData.getData(), fullData.getRowOffset(order[i]), sample, i * numDimensions, numDimensions);
+		}
+
+		//k-means++: each new center is a sample point picked with probability proportional to its squared distance to the nearest center so far
+		double[] clusterCenters = new double[numCells * numDimensions];
+		double[] nearestDistance = new double[sampleSize];
+		System.arraycopy(sample, random.nextInt(sampleSize) * numDimensions, clusterCenters, 0, numDimensions);
+		for (int i = 0; i < sampleSize; i++) {
+			nearestDistance[i] = Utilities.calculateSquaredDistance(sample, i * numDimensions, clusterCenters, 0, numDimensions);
+		}
+		for (int c = 1; c < numCells; c++) {
+			double total = 0.0;
+			for (double distance : nearestDistance) {
+				total += distance;
+			}
+			int picked = random.nextInt(sampleSize);
+			if (total > 0) {
+				double target = random.nextDouble() * total;
+				for (picked = 0; picked < sampleSize - 1 && target >= nearestDistance[picked]; picked++) {
+					target -= nearestDistance[picked];
+				}
+			}
+			System.arraycopy(sample, picked * numDimensions, clusterCenters, c * numDimensions, numDimensions);
+			for (int i = 0; i < sampleSize; i++) {
+				nearestDistance[i] = Math.min(nearestDistance[i], Utilities.calculateSquaredDistance(sample, i * numDimensions, clusterCenters, c * numDimensions, numDimensions));
+			}
+		}
+
+		int[] assignment = new int[sampleSize];
+		int[] cellSize = new int[numCells];
+		for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+			boolean changed = iteration == 0;
+			for (int i = 0; i < sampleSize; i++) {
+				int nearest = getNearestCenter(clusterCenters, numCells, sample, i * numDimensions, numDimensions);
+				if (nearest != assignment[i]) {
+					assignment[i] = nearest;
+					changed = true;
+				}
+			}
+			if (!changed) {
+				break;
+			}
+
+			//move each center to the mean of its points; a center that lost all its points stays where it is
+			double[] sums = new double[numCells * numDimensions];
+			Arrays.fill(cellSize, 0);
+			for (int i = 0; i < sampleSize; i++) {
+				int c = assignment[i];
+				cellSize[c]++;
+				for (int d = 0; d < numDimensions; d++) {
+					sums[c * numDimensions + d] += sample[i * numDimensions + d];
+				}
+			}
+			for (int c = 0; c < numCells; c++) {
+				if (cellSize[c] > 0) {
+					for (int d = 0; d < numDimensions; d++) {
+						clusterCenters[c * numDimensions + d] = sums[c * numDimensions + d] / cellSize[c];
+					}
+				}
+			}
+		}
+
+		return clusterCenters;
+	}
+
+	static int getNearestCenter(double[] clusterCenters, int numCenters, double[] data, int offset, int numDimensions) {
+		int nearest = 0;
+		double nearestDistance = Double.POSITIVE_INFINITY;
+		for (int c = 0; c < numCenters; c++) {
+			double distance = Utilities.calculateSquaredDistance(data, offset, clusterCenters, c * numDimensions, numDimensions);
+			if (distance < nearestDistance) {
+				nearestDistance = distance;
+				nearest = c;
+			}
+		}
+		return nearest;
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * KD-tree over the training points for exact k-nearest neighbor search.
+ * The tree is implicit: the training indices are permuted so that each range [lo, hi) has its split point at the
+ * middle, points closer to the origin along the split dimension on the left and the rest on the right.
+ * A subtree is only searched if the splitting plane is no further away than the current k-th neighbor, so the search
+ * is sub-linear in low dimensions (such as PCA-reduced data) and degrades towards a linear scan as dimensions grow.
+ *
+ * @author Scott Weaver
+ */
+public class KdTree implements NeighborIndex {
+	private final double[] data;
+	private final int numDimensions;
+	private final int[] pointIndex;
+	//split dimension of the node whose split point is at that position of pointIndex
+	private final int[] splitDimension;
+
+	public KdTree(FeatureMatrix fullData) {
+		this.data = fullData.getData();
+		this.numDimensions = fullData.getNumColumns();
+		int fullDataSize = fullData.getNumRows();
+
+		pointIndex = new int[fullDataSize];
+		splitDimension = new int[fullDataSize];
+		for (int i = 0; i < fullDataSize; i++) {
+			pointIndex[i] = i;
+		}
+
+		build(0, fullDataSize);
+	}
+
+	//Restores a tree over fullData from the getPointIndex() and getSplitDimension() of one built over the same points,
+	//without building it again.
+	KdTree(FeatureMatrix fullData, int[] pointIndex, int[] splitDimension) {
+		this.data = fullData.getData();
+		this.numDimensions = fullData.getNumColumns();
+		int fullDataSize = fullData.getNumRows();
+		if (pointIndex.length != fullDataSize || splitDimension.length != fullDataSize) {
+			throw new IllegalArgumentException("Tree of " + pointIndex.length + " points for " + fullDataSize + " points.");
+		}
+
+		boolean[] seen = new boolean[fullDataSize];
+		for (int i = 0; i < fullDataSize; i++) {
+			if (pointIndex[i] < 0 || pointIndex[i] >= fullDataSize || seen[pointIndex[i]]) {
+				throw new IllegalArgumentException("Tree point indices are not a permutation of the points.");
+			}
+			seen[pointIndex[i]] = true;
+			if (splitDimension[i] < 0 || splitDimension[i] >= numDimensions) {
+				throw new IllegalArgumentException("Tree split dimension " + splitDimension[i] + " of " + numDimensions + " dimensions.");
+			}
+		}
+
+		this.pointIndex = pointIndex;
+		this.splitDimension = splitDimension;
+	}
+
+	int[] getPointIndex() {
+		return pointIndex;
+	}
+
+	int[] getSplitDimension() {
+		return splitDimension;
+	}
+
+	@Override
+	public void search(double[] testData, int testOffset, TopKSelector selector) {
+		selector.clear();
+		search(testData, testOffset, selector, 0, pointIndex.length);
+		selector.sort();
+	}
+
+	private void build(int lo, int hi) {
+		if (hi - lo <= 1) {
+			return;
+		}
+
+		int dimension = getWidestDimension(lo, hi);
+		int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, dimension);
+		splitDimension[mid] = dimension;
+
+		build(lo, mid);
+		build(mid + 1, hi);
+	}
+
+	//Splitting on the dimension with the largest spread keeps the cells close to cubes.
+	private int getWidestDimension(int lo, int hi) {
+		int widest = 0;
+		double widestSpread = -1.0;
+
+		for (int d = 0; d < numDimensions; d++) {
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = lo; i < hi; i++) {
+				double value = data[pointIndex[i] * numDimensions + d];
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			if (max - min > widestSpread) {
+				widestSpread = max - min;
+				widest = d;
+			}
+		}
+
+		return widest;
+	}
+
+	//Quickselect: rearranges pointIndex[left..right] so position k holds the point that would be there if the range were sorted on dimension.
+	//Each step is a three-way partition, so a run of equal values (identical windows are common) is placed in one step
+	//instead of one element at a time.
+	private void select(int left, int right, int k, int dimension) {
+		while (right > left) {
+			double pivotValue = data[pointIndex[(left + right) >>> 1] * numDimensions + dimension];
+
+			//[left, less) is below the pivot value, [less, i) equal to it and (greater, right] above it
+			int less = left;
+			int greater = right;
+			int i = left;
+			while (i <= greater) {
+				double value = data[pointIndex[i] * numDimensions + dimension];
+				if (value < pivotValue) {
+					swap(i++, less++);
+				} else if (value > pivotValue) {
+					swap(i, greater--);
+				} else {
+					i++;
+				}
+			}
+
+			if (k < less) {
+				right = less - 1;
+			} else if (k > greater) {
+				left = greater + 1;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int temp = pointIndex[i];
+		pointIndex[i] = pointIndex[j];
+		pointIndex[j] = temp;
+	}
+
+	private void search(double[] testData, int testOffset, TopKSelector selector, int lo, int hi) {
+		if (hi <= lo) {
+			return;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		int index = pointIndex[mid];
+		int pointOffset = index * numDimensions;
+		selector.offer(index, Utilities.calculateSquaredDistance(testData, testOffset, data, pointOffset, numDimensions));
+
+		if (hi - lo == 1) {
+			return;
+		}
+
+		double planeDistance = testData[testOffset + splitDimension[mid]] - data[pointOffset + splitDimension[mid]];
+
+		if (planeDistance < 0) {
+			search(testData, testOffset, selector, lo, mid);
+			if (canContainNeighbor(selector, planeDistance)) {
+				search(testData, testOffset, selector, mid + 1, hi);
+			}
+		} else {
+			search(testData, testOffset, selector, mid + 1, hi);
+			if (canContainNeighbor(selector, planeDistance)) {
+				search(testData, testOffset, selector, lo, mid);
+			}
+		}
+	}
+
+	//The far side is skipped only when its nearest possible point is strictly further than the current k-th neighbor,
+	//because a point at exactly the same distance can still displace it on the index tie-break. The selector holds squared distances.
+	private static boolean canContainNeighbor(TopKSelector selector, double planeDistance) {
+		if (selector.size() < selector.getK()) {
+			return true;
+		}
+		return planeDistance * planeDistance <= selector.getFurthestDistance();
+	}
+}
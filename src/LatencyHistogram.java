@@ -0,0 +1,98 @@
+/*
+ * Histogram of latencies in nanoseconds with constant memory, for percentiles over any number of samples.
+ * Values below 16 have their own buckets; above that each power of two is split into 16 buckets, so a percentile is
+ * reported within about 6% of the true value. Not thread-safe; record from one thread or merge per-thread histograms.
+ *
+ * @author Scott Weaver
+ */
+import java.util.Arrays;
+
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private final long[] counts = new long[SUB_BUCKETS * 61];
+	private long count;
+	private long max;
+	private long total;
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[getBucket(nanos)]++;
+		count++;
+		total += nanos;
+		max = Math.max(max, nanos);
+	}
+
+	public void merge(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0.0 : (double) total / count;
+	}
+
+	//Returns the latency below which the given fraction (0 to 1) of the samples fall, rounded up to the end of its bucket.
+	public long getPercentile(double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(getBucketEnd(i), max);
+			}
+		}
+		return max;
+	}
+
+	//Summary such as "count=100 mean=12.3us p50=10.0us p90=20.1us p99=40.9us p99.9=41.0us max=41.0us".
+	public String summary() {
+		return "count=" + count
+				+ String.format(" mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+						getMean() / 1e3, getPercentile(0.5) / 1e3, getPercentile(0.9) / 1e3,
+						getPercentile(0.99) / 1e3, getPercentile(0.999) / 1e3, max / 1e3);
+	}
+
+	private static int getBucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getBucketEnd(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = bucket % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Read-only view of a binary feature file (see BinaryFeatureFile) that leaves the values in the memory-mapped file,
+ * for training sets larger than the heap. The operating system pages the file in and out as it is scanned, so the heap
+ * only holds the blocks being searched.
+ *
+ * search finds the k nearest rows of a batch of queries in one pass over the file: the rows are split into ranges that
+ * are scanned in parallel, one block of BLOCK_ROWS rows at a time. Each block is copied into a heap buffer and compared
+ * with every query of the batch while it is in cache, so the file is read once per batch rather than once per query.
+ * Each range keeps its own top-k per query, and the ranges are merged as they are joined. Ties are broken on the row
+ * index as in TopKSelector, so the neighbors are the same as a brute force search and do not depend on the number of threads.
+ *
+ * @author Scott Weaver
+ */
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class MappedFeatureStore implements Closeable, ClassIdLookup {
+	//rows compared with the queries at a time; BLOCK_ROWS rows of a few dozen components fit in L2 cache
+	private static int BLOCK_ROWS = 2048;
+	//blocks scanned by a single task
+	private static int TASK_BLOCKS = 16;
+	//largest region mapped at once
+	private static long MAP_SIZE = 1L << 30;
+
+	//final so the JIT can inline the kernel into the scan
+	private static final DistanceKernel DISTANCE_KERNEL = DistanceKernel.getSelected();
+
+	private final RandomAccessFile file;
+	private final int numRows;
+	private final int numColumns;
+	private final String columnHeaders;
+	private final ClassDictionary dictionary;
+
+	//region r holds rows [r * rowsPerRegion, (r + 1) * rowsPerRegion); only one of the two arrays is used
+	private final int rowsPerRegion;
+	private final DoubleBuffer[] doubleRegions;
+	private final FloatBuffer[] floatRegions;
+	//region r holds the class ids of rows [r * idsPerRegion, (r + 1) * idsPerRegion), as ids of the file
+	private final int idsPerRegion;
+	private final IntBuffer[] idRegions;
+	//dictionary id of each class id of the file
+	private final int[] classIds;
+
+	//Opens a binary feature file, adding its classes to dictionary.
+	public MappedFeatureStore(String featureFilePath, ClassDictionary dictionary) throws IOException {
+		this.dictionary = dictionary;
+		file = new RandomAccessFile(featureFilePath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			BinaryFeatureFile.Header header = BinaryFeatureFile.readHeader(featureFilePath, channel, dictionary);
+			numRows = header.numRows;
+			numColumns = header.numColumns;
+			columnHeaders = header.columnHeaders;
+			classIds = header.classIds;
+
+			long rowSize = (long) numColumns * header.elementSize;
+			rowsPerRegion = (int) Math.min(Integer.MAX_VALUE, Math.max(1, MAP_SIZE / Math.max(1, rowSize)));
+			int numRegions = (int) ((numRows + (long) rowsPerRegion - 1) / rowsPerRegion);
+			doubleRegions = new DoubleBuffer[header.elementSize == 8 ? numRegions : 0];
+			floatRegions = new FloatBuffer[header.elementSize == 4 ? numRegions : 0];
+			for (int r = 0; r < numRegions; r++) {
+				long firstRow = (long) r * rowsPerRegion;
+				long size = Math.min(rowsPerRegion, numRows - firstRow) * rowSize;
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, header.dataStart + firstRow * rowSize, size);
+				region.order(ByteOrder.LITTLE_ENDIAN);
+				if (header.elementSize == 8) {
+					doubleRegions[r] = region.asDoubleBuffer();
+				} else {
+					floatRegions[r] = region.asFloatBuffer();
+				}
+			}
+
+			idsPerRegion = (int) (MAP_SIZE / 4);
+			idRegions = new IntBuffer[(int) ((numRows + (long) idsPerRegion - 1) / idsPerRegion)];
+			for (int r = 0; r < idRegions.length; r++) {
+				long firstRow = (long) r * idsPerRegion;
+				long size = 4 * Math.min(idsPerRegion, numRows - firstRow);
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, header.idsStart + 4 * firstRow, size);
+				idRegions[r] = region.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			}
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	public String getColumnHeaders() {
+		return columnHeaders;
+	}
+
+	public ClassDictionary getDictionary() {
+		return dictionary;
+	}
+
+	//Dictionary id of the classification of a row.
+	@Override
+	public int getId(int row) {
+		int id = idRegions[row / idsPerRegion].get(row % idsPerRegion);
+		if (id < 0 || id >= classIds.length) {
+			throw new IllegalStateException("Corrupt class id " + id + " in row " + row);
+		}
+		return classIds[id];
+	}
+
+	//Copies rows [firstRow, firstRow + count) into block, row-major.
+	public void readRows(int firstRow, int count, double[] block) {
+		int offset = 0;
+		while (count > 0) {
+			int region = firstRow / rowsPerRegion;
+			int regionRow = firstRow % rowsPerRegion;
+			int regionCount = Math.min(count, rowsPerRegion - regionRow);
+			int numValues = regionCount * numColumns;
+			if (doubleRegions.length > 0) {
+				doubleRegions[region].get(regionRow * numColumns, block, offset, numValues);
+			} else {
+				FloatBuffer floats = floatRegions[region];
+				int start = regionRow * numColumns;
+				for (int i = 0; i < numValues; i++) {
+					block[offset + i] = floats.get(start + i);
+				}
+			}
+			offset += numValues;
+			firstRow += regionCount;
+			count -= regionCount;
+		}
+	}
+
+	//Finds the k nearest rows of each of the numQueries queries stored row-major in queries. Returns one selector per
+	//query, sorted, nearest first.
+	public TopKSelector[] search(double[] queries, int numQueries, int k, ForkJoinPool pool) {
+		int numBlocks = (numRows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+		TopKSelector[] selectors = pool.invoke(new SearchTask(queries, numQueries, k, 0, numBlocks));
+		for (TopKSelector selector : selectors) {
+			selector.sort();
+		}
+		return selectors;
+	}
+
+	//Scans blocks [lo, hi) and returns the k nearest rows of each query within them.
+	private class SearchTask extends RecursiveTask<TopKSelector[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final double[] queries;
+		private final int numQueries;
+		private final int k;
+		private final int lo;
+		private final int hi;
+
+		SearchTask(double[] queries, int numQueries, int k, int lo, int hi) {
+			this.queries = queries;
+			this.numQueries = numQueries;
+			this.k = k;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected TopKSelector[] compute() {
+			if (hi - lo > TASK_BLOCKS) {
+				int mid = (lo + hi) >>> 1;
+				SearchTask left = new SearchTask(queries, numQueries, k, lo, mid);
+				SearchTask right = new SearchTask(queries, numQueries, k, mid, hi);
+				left.fork();
+				TopKSelector[] selectors = right.compute();
+				TopKSelector[] leftSelectors = left.join();
+				//merge the candidates of the two halves; the order they are offered in does not change the result
+				for (int q = 0; q < numQueries; q++) {
+					for (int j = 0; j < leftSelectors[q].size(); j++) {
+						selectors[q].offer(leftSelectors[q].getIndex(j), leftSelectors[q].getDistance(j));
+					}
+				}
+				return selectors;
+			}
+
+			TopKSelector[] selectors = new TopKSelector[numQueries];
+			for (int q = 0; q < numQueries; q++) {
+				selectors[q] = new TopKSelector(k);
+			}
+			double[] block = new double[BLOCK_ROWS * numColumns];
+			for (int b = lo; b < hi; b++) {
+				int firstRow = b * BLOCK_ROWS;
+				int blockRows = Math.min(BLOCK_ROWS, numRows - firstRow);
+				readRows(firstRow, blockRows, block);
+
+				for (int q = 0; q < numQueries; q++) {
+					TopKSelector selector = selectors[q];
+					int queryOffset = q * numColumns;
+					for (int r = 0; r < blockRows; r++) {
+						selector.offer(firstRow + r, DISTANCE_KERNEL.squaredDistance(queries, queryOffset, block, r * numColumns, numColumns));
+					}
+				}
+			}
+			return selectors;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Compares the per-pair brute force search with the matrix multiplication search of MatrixDistanceIndex on a batch of
+ * synthetic test points, both on all threads. The neighbors of both are compared, so the benchmark doubles as an
+ * exactness check of the re-ranking.
+ *
+ * Usage: MatrixDistanceBenchmark [numTrainingData] [numTestData] [numDimensions] [k]
+ *
+ * @author Scott Weaver
+ */
+import java.util.concurrent.ForkJoinPool;
+
+public class MatrixDistanceBenchmark {
+	private static int NUM_CLASSES = 4;
+	private static int NUM_REPEATS = 5;
+
+	public static void main(String[] args) {
+		int numTrainingData = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int numTestData = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+		int numDimensions = args.length > 2 ? Integer.parseInt(args[2]) : 14;
+		int k = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		ClassLabels trainingClassification = new ClassLabels(new ClassDictionary());
+		ClassLabels testClassification = new ClassLabels(trainingClassification.getDictionary());
+		FeatureMatrix trainingData = new FeatureMatrix();
+		FeatureMatrix testData = new FeatureMatrix();
+		SyntheticFeatureData.generate(numTrainingData, numDimensions, NUM_CLASSES, 1, 2, trainingData, trainingClassification);
+		SyntheticFeatureData.generate(numTestData, numDimensions, NUM_CLASSES, 1, 3, testData, testClassification);
+
+		ForkJoinPool pool = new ForkJoinPool();
+		BatchClassifier bruteForce = new BatchClassifier(new BruteForceIndex(trainingData), trainingClassification, k, pool);
+
+		long buildStart = System.nanoTime();
+		MatrixDistanceIndex matrixIndex = new MatrixDistanceIndex(trainingData, pool);
+		double buildMillis = (System.nanoTime() - buildStart) / 1e6;
+
+		checkSameNeighbors(trainingData, testData, matrixIndex.search(testData, k), k);
+
+		double bruteMillis = Double.MAX_VALUE;
+		double matrixMillis = Double.MAX_VALUE;
+		int bruteCount = 0;
+		int matrixCount = 0;
+		for (int repeat = 0; repeat < NUM_REPEATS; repeat++) {
+			long start = System.nanoTime();
+			bruteCount = bruteForce.classify(testData, testClassification).count;
+			bruteMillis = Math.min(bruteMillis, (System.nanoTime() - start) / 1e6);
+
+			start = System.nanoTime();
+			matrixCount = matrixIndex.classify(testData, testClassification, trainingClassification, k).count;
+			matrixMillis = Math.min(matrixMillis, (System.nanoTime() - start) / 1e6);
+		}
+		pool.shutdown();
+
+		System.out.println("Training Data: " + numTrainingData + ", Test Data: " + numTestData + ", Dimensions: " + numDimensions + ", k = " + k);
+		System.out.println("Brute Force (ms),Matrix Build (ms),Matrix Search (ms),Speedup");
+		System.out.println(String.format("%.2f,%.2f,%.2f,%.2f", bruteMillis, buildMillis, matrixMillis, bruteMillis / matrixMillis));
+		if (bruteCount != matrixCount) {
+			throw new IllegalStateException("Accuracy differs: " + bruteCount + " != " + matrixCount);
+		}
+	}
+
+	private static void checkSameNeighbors(FeatureMatrix trainingData, FeatureMatrix testData, TopKSelector[] actual, int k) {
+		NeighborIndex bruteForce = new BruteForceIndex(trainingData);
+		TopKSelector expected = new TopKSelector(k);
+
+		for (int t = 0; t < testData.getNumRows(); t++) {
+			bruteForce.search(testData.getData(), testData.getRowOffset(t), expected);
+			for (int i = 0; i < expected.size(); i++) {
+				if (expected.getIndex(i) != actual[t].getIndex(i)) {
+					throw new IllegalStateException("Neighbor " + i + " of test point " + t + " differs: " + expected.getIndex(i) + " != " + actual[t].getIndex(i));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Exact KNN search for a whole batch of test points through matrix multiplication.
+ * The squared distance between a test point a and a training point b is ||a||^2 + ||b||^2 - 2 a.b, so the distances
+ * between a tile of test points and a tile of training points are the product of the two tiles plus the norms. The
+ * training norms and a copy of the training data laid out tile by tile, column by column, are computed once when the
+ * index is built. The product works on 4 test points at a time: for each column it adds the 4 test values times the
+ * tile's column to 4 rows of partial distances. That inner loop runs over contiguous memory and compiles to SIMD
+ * multiply-adds, and each training value loaded is used 4 times. The tile stays in cache while every test point of the
+ * tile is compared with it. Each distance is then offered to the test point's TopKSelector.
+ *
+ * The expanded form loses precision to cancellation. Both tiles are centered on the training mean first, which keeps
+ * the norms small, but the distances can still differ from those of Utilities.performKNN in the last bits, so the
+ * search keeps RERANK_MARGIN extra candidates. The candidates are re-ranked with the exact distances. A rounding error
+ * bound then checks that no point outside the candidates could still be among the k nearest. When the bound cannot rule
+ * that out, the test point falls back to a full scan. The neighbors are therefore always the same as BruteForceIndex.
+ *
+ * Test points are split across the pool in tiles of QUERY_TILE, so the results do not depend on the number of threads.
+ *
+ * @author Scott Weaver
+ */
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class MatrixDistanceIndex implements NeighborIndex {
+	//test points per task and per tile
+	private static int QUERY_TILE = 64;
+	//training points per tile; TRAINING_TILE rows of a few dozen components fit in L1/L2 cache
+	private static int TRAINING_TILE = 256;
+	//candidates kept beyond k for the exact re-ranking
+	private static int RERANK_MARGIN = 16;
+	//unit roundoff of double arithmetic
+	private static final double UNIT_ROUNDOFF = Math.ulp(1.0) / 2;
+
+	private static final DistanceKernel DISTANCE_KERNEL = DistanceKernel.getSelected();
+
+	private final FeatureMatrix trainingData;
+	private final ForkJoinPool pool;
+	private final int numTrainingData;
+	private final int numColumns;
+
+	private final double[] mean;
+	//training data minus the mean, in tiles of TRAINING_TILE rows; within a tile the values are stored column by column,
+	//so column d of the tile starting at row t holds tileRows values from tiledData[t * numColumns + d * tileRows]
+	private final double[] tiledData;
+	//squared norm of each centered training point
+	private final double[] norms;
+	private final double maxNorm;
+	//largest absolute value of the training data and of the mean, for the error bound of the centering
+	private final double maxAbsValue;
+
+	public MatrixDistanceIndex(FeatureMatrix trainingData, ForkJoinPool pool) {
+		this.trainingData = trainingData;
+		this.pool = pool;
+		this.numTrainingData = trainingData.getNumRows();
+		this.numColumns = trainingData.getNumColumns();
+
+		double[] data = trainingData.getData();
+		mean = new double[numColumns];
+		double maxAbs = 0;
+		for (int r = 0; r < numTrainingData; r++) {
+			int offset = trainingData.getRowOffset(r);
+			for (int c = 0; c < numColumns; c++) {
+				mean[c] += data[offset + c];
+				maxAbs = Math.max(maxAbs, Math.abs(data[offset + c]));
+			}
+		}
+		for (int c = 0; c < numColumns; c++) {
+			mean[c] /= Math.max(1, numTrainingData);
+		}
+		maxAbsValue = maxAbs;
+
+		tiledData = new double[numTrainingData * numColumns];
+		norms = new double[numTrainingData];
+		double[] row = new double[numColumns];
+		double max = 0;
+		for (int r = 0; r < numTrainingData; r++) {
+			norms[r] = center(data, trainingData.getRowOffset(r), row, 0);
+			max = Math.max(max, norms[r]);
+
+			int tileStart = r - r % TRAINING_TILE;
+			int tileRows = Math.min(TRAINING_TILE, numTrainingData - tileStart);
+			for (int c = 0; c < numColumns; c++) {
+				tiledData[tileStart * numColumns + c * tileRows + r - tileStart] = row[c];
+			}
+		}
+		maxNorm = max;
+	}
+
+	//Writes the row at data[offset] minus the mean to out[outOffset]. Returns its squared norm.
+	private double center(double[] data, int offset, double[] out, int outOffset) {
+		double norm = 0;
+		for (int c = 0; c < numColumns; c++) {
+			double value = data[offset + c] - mean[c];
+			out[outOffset + c] = value;
+			norm += value * value;
+		}
+		return norm;
+	}
+
+	@Override
+	public void search(double[] testData, int testOffset, TopKSelector selector) {
+		TopKSelector[] selectors = {selector};
+		searchTile(testData, new int[] {testOffset}, 0, 1, selector.getK(), selectors);
+	}
+
+	//Returns the k nearest training points of every row of testData, one sorted selector per row.
+	public TopKSelector[] search(FeatureMatrix testData, int k) {
+		int numTestData = testData.getNumRows();
+		int[] testOffsets = new int[numTestData];
+		TopKSelector[] selectors = new TopKSelector[numTestData];
+		for (int i = 0; i < numTestData; i++) {
+			testOffsets[i] = testData.getRowOffset(i);
+			selectors[i] = new TopKSelector(k);
+		}
+		pool.invoke(new SearchTask(testData.getData(), testOffsets, k, selectors, 0, numTestData));
+		return selectors;
+	}
+
+	//Classifies every row of testData by a majority vote of its k nearest training points, like BatchClassifier.
+	public BatchClassifier.Result classify(FeatureMatrix testData, ClassLabels testClassification, ClassLabels trainingClassification, int k) {
+		TopKSelector[] selectors = search(testData, k);
+		BatchClassifier.Result result = new BatchClassifier.Result(testData.getNumRows());
+		int[] numOccurances = new int[trainingClassification.getDictionary().size()];
+		for (int i = 0; i < selectors.length; i++) {
+			BatchClassifier.vote(selectors[i], trainingClassification, numOccurances, result, i);
+			if (testClassification.getId(i) == result.predictedClassification[i]) {
+				result.count++;
+			}
+		}
+		return result;
+	}
+
+	private class SearchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final double[] testData;
+		private final int[] testOffsets;
+		private final int k;
+		private final TopKSelector[] selectors;
+		private final int lo;
+		private final int hi;
+
+		SearchTask(double[] testData, int[] testOffsets, int k, TopKSelector[] selectors, int lo, int hi) {
+			this.testData = testData;
+			this.testOffsets = testOffsets;
+			this.k = k;
+			this.selectors = selectors;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > QUERY_TILE) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new SearchTask(testData, testOffsets, k, selectors, lo, mid), new SearchTask(testData, testOffsets, k, selectors, mid, hi));
+				return;
+			}
+			searchTile(testData, testOffsets, lo, hi, k, selectors);
+		}
+	}
+
+	//Fills selectors[lo] to selectors[hi - 1] with the k nearest training points of the test points starting at testOffsets[lo] to testOffsets[hi - 1].
+	private void searchTile(double[] testData, int[] testOffsets, int lo, int hi, int k, TopKSelector[] selectors) {
+		int numQueries = hi - lo;
+		double[] queries = new double[numQueries * numColumns];
+		double[] queryNorms = new double[numQueries];
+		double[] queryMaxAbs = new double[numQueries];
+		TopKSelector[] candidates = new TopKSelector[numQueries];
+		int numCandidates = Math.min(k + RERANK_MARGIN, Math.max(1, numTrainingData));
+		for (int i = 0; i < numQueries; i++) {
+			int testOffset = testOffsets[lo + i];
+			queryNorms[i] = center(testData, testOffset, queries, i * numColumns);
+			for (int c = 0; c < numColumns; c++) {
+				queryMaxAbs[i] = Math.max(queryMaxAbs[i], Math.abs(testData[testOffset + c]));
+			}
+			candidates[i] = new TopKSelector(numCandidates);
+		}
+
+		double[][] dots = new double[numQueries][TRAINING_TILE];
+		for (int tileStart = 0; tileStart < numTrainingData; tileStart += TRAINING_TILE) {
+			int tileRows = Math.min(TRAINING_TILE, numTrainingData - tileStart);
+			multiply(queries, numQueries, tileStart, tileRows, dots);
+
+			for (int i = 0; i < numQueries; i++) {
+				TopKSelector selector = candidates[i];
+				double queryNorm = queryNorms[i];
+				double[] queryDots = dots[i];
+				//most points are further than the k-th candidate so far; a point at the same distance is not taken
+				//either, since every candidate has a smaller index
+				double threshold = selector.size() < selector.getK() ? Double.POSITIVE_INFINITY : selector.getFurthestDistance();
+				for (int j = 0; j < tileRows; j++) {
+					double distance = queryNorm + queryDots[j];
+					if (distance < threshold) {
+						selector.offer(tileStart + j, distance);
+						threshold = selector.size() < selector.getK() ? Double.POSITIVE_INFINITY : selector.getFurthestDistance();
+					}
+				}
+			}
+		}
+
+		double[] data = trainingData.getData();
+		int numFallbacks = 0;
+		for (int i = 0; i < numQueries; i++) {
+			int testOffset = testOffsets[lo + i];
+			TopKSelector candidateSelector = candidates[i];
+			TopKSelector selector = selectors[lo + i];
+			selector.clear();
+			for (int j = 0; j < candidateSelector.size(); j++) {
+				int index = candidateSelector.getIndex(j);
+				selector.offer(index, DISTANCE_KERNEL.squaredDistance(testData, testOffset, data, trainingData.getRowOffset(index), numColumns));
+			}
+
+			//a training point that is not a candidate has an expanded distance of at least the furthest candidate's, so its
+			//exact distance is at least that minus the error bound; if that is beyond the k-th exact distance it cannot be a neighbor
+			boolean allCandidates = candidateSelector.size() == numTrainingData;
+			if (!allCandidates && candidateSelector.getFurthestDistance() - getErrorBound(queryNorms[i], queryMaxAbs[i]) <= selector.getFurthestDistance()) {
+				Utilities.performKNN(trainingData, testData, testOffset, selector);
+				numFallbacks++;
+			} else {
+				selector.sort();
+			}
+		}
+		Metrics.increment("matrixDistanceFallbacks", numFallbacks);
+	}
+
+	//Bound on the difference between the expanded distance of a test point to any training point and the exact distance
+	//from DISTANCE_KERNEL: the rounding of the dot product and norms, of the exact distance, and of the centering. Doubled for safety.
+	private double getErrorBound(double queryNorm, double queryMaxAbs) {
+		double normSum = queryNorm + maxNorm;
+		double expandedError = 4 * (numColumns + 2) * UNIT_ROUNDOFF * normSum;
+		double exactError = 2 * (numColumns + 2) * UNIT_ROUNDOFF * normSum;
+		double centeringError = 4 * UNIT_ROUNDOFF * Math.max(maxAbsValue, queryMaxAbs) * Math.sqrt(numColumns);
+		centeringError = 2 * Math.sqrt(2 * normSum) * centeringError + centeringError * centeringError;
+		return 2 * (expandedError + exactError + centeringError);
+	}
+
+	//Sets dots[i][j] to ||b||^2 - 2 a.b for centered query i (a) and centered training point tileStart + j (b), for
+	//i < numQueries and j < tileRows; adding ||a||^2 gives the squared distance. Scaling by -2 is exact.
+	private void multiply(double[] queries, int numQueries, int tileStart, int tileRows, double[][] dots) {
+		int n = numColumns;
+		double[] tile = tiledData;
+		int tileOffset = tileStart * n;
+
+		int i = 0;
+		for (; i + 4 <= numQueries; i += 4) {
+			double[] dots0 = dots[i];
+			double[] dots1 = dots[i + 1];
+			double[] dots2 = dots[i + 2];
+			double[] dots3 = dots[i + 3];
+			int a0 = i * n;
+			System.arraycopy(norms, tileStart, dots0, 0, tileRows);
+			System.arraycopy(norms, tileStart, dots1, 0, tileRows);
+			System.arraycopy(norms, tileStart, dots2, 0, tileRows);
+			System.arraycopy(norms, tileStart, dots3, 0, tileRows);
+			for (int d = 0; d < n; d++) {
+				double q0 = -2 * queries[a0 + d];
+				double q1 = -2 * queries[a0 + n + d];
+				double q2 = -2 * queries[a0 + 2 * n + d];
+				double q3 = -2 * queries[a0 + 3 * n + d];
+				int columnOffset = tileOffset + d * tileRows;
+				for (int j = 0; j < tileRows; j++) {
+					double t = tile[columnOffset + j];
+					dots0[j] += q0 * t;
+					dots1[j] += q1 * t;
+					dots2[j] += q2 * t;
+					dots3[j] += q3 * t;
+				}
+			}
+		}
+		for (; i < numQueries; i++) {
+			double[] dots0 = dots[i];
+			System.arraycopy(norms, tileStart, dots0, 0, tileRows);
+			for (int d = 0; d < n; d++) {
+				double q0 = -2 * queries[i * n + d];
+				int columnOffset = tileOffset + d * tileRows;
+				for (int j = 0; j < tileRows; j++) {
+					dots0[j] += q0 * tile[columnOffset + j];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Run-wide timers, counters and latency histograms for the evaluation pipeline, exported as JSON or CSV.
+ *
+ *   timers      wall time and count of each phase (load, covariance, eigendecomposition, projection, ...), and the
+ *               bytes allocated by all threads while it ran, from the JVM's per-thread allocation counters
+ *   counters    event counts, such as queries classified
+ *   histograms  per-query latencies (see LatencyHistogram)
+ *
+ * Phases are timed with start(name) ... stop(). Hot loops should not call in per query: they keep their own sums and
+ * a local histogram and add them once per batch with addTime, increment and record, which are thread-safe.
+ * When disabled, start returns a stopwatch that does nothing and the other calls return at once.
+ *
+ * @author Scott Weaver
+ */
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+	private static volatile boolean enabled = true;
+
+	private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+	//each histogram is guarded by its own lock
+	private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+	//null when the JVM does not count allocations per thread
+	private static final com.sun.management.ThreadMXBean THREAD_BEAN = getThreadBean();
+
+	private static class Timer {
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder allocatedBytes = new LongAdder();
+	}
+
+	public static class Stopwatch {
+		private final Timer timer;
+		private final long startNanos;
+		private final long startAllocatedBytes;
+
+		private Stopwatch(Timer timer) {
+			this.timer = timer;
+			this.startAllocatedBytes = timer == null ? 0 : getAllocatedBytes();
+			this.startNanos = System.nanoTime();
+		}
+
+		//Adds the time and allocations since start to the timer. Returns the elapsed nanoseconds.
+		public long stop() {
+			long elapsed = System.nanoTime() - startNanos;
+			if (timer != null) {
+				timer.count.increment();
+				timer.nanos.add(elapsed);
+				//threads that ended since start take their counts with them, so the difference can come out negative
+				timer.allocatedBytes.add(Math.max(0, getAllocatedBytes() - startAllocatedBytes));
+			}
+			return elapsed;
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	public static Stopwatch start(String timerName) {
+		return new Stopwatch(enabled ? getTimer(timerName) : null);
+	}
+
+	//Adds time measured by the caller, such as the total over a batch of queries, without allocation counts.
+	public static void addTime(String timerName, long count, long nanos) {
+		if (!enabled) {
+			return;
+		}
+		Timer timer = getTimer(timerName);
+		timer.count.add(count);
+		timer.nanos.add(nanos);
+	}
+
+	public static void increment(String counterName, long delta) {
+		if (!enabled) {
+			return;
+		}
+		LongAdder counter = counters.get(counterName);
+		if (counter == null) {
+			counters.putIfAbsent(counterName, new LongAdder());
+			counter = counters.get(counterName);
+		}
+		counter.add(delta);
+	}
+
+	//Merges a histogram the caller recorded into the named one.
+	public static void record(String histogramName, LatencyHistogram latencies) {
+		if (!enabled) {
+			return;
+		}
+		LatencyHistogram histogram = histograms.get(histogramName);
+		if (histogram == null) {
+			histograms.putIfAbsent(histogramName, new LatencyHistogram());
+			histogram = histograms.get(histogramName);
+		}
+		synchronized (histogram) {
+			histogram.merge(latencies);
+		}
+	}
+
+	public static void reset() {
+		timers.clear();
+		counters.clear();
+		histograms.clear();
+	}
+
+	private static Timer getTimer(String timerName) {
+		Timer timer = timers.get(timerName);
+		if (timer == null) {
+			timers.putIfAbsent(timerName, new Timer());
+			timer = timers.get(timerName);
+		}
+		return timer;
+	}
+
+	private static com.sun.management.ThreadMXBean getThreadBean() {
+		try {
+			java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			if (threadBean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+				if (allocationBean.isThreadAllocatedMemorySupported()) {
+					allocationBean.setThreadAllocatedMemoryEnabled(true);
+					return allocationBean;
+				}
+			}
+		} catch (UnsupportedOperationException | LinkageError e) {
+			//not a HotSpot JVM
+		}
+		return null;
+	}
+
+	//Total bytes allocated so far by the threads that are alive, or 0 when not supported.
+	private static long getAllocatedBytes() {
+		if (THREAD_BEAN == null) {
+			return 0;
+		}
+		long total = 0;
+		for (long allocated : THREAD_BEAN.getThreadAllocatedBytes(THREAD_BEAN.getAllThreadIds())) {
+			if (allocated > 0) {
+				total += allocated;
+			}
+		}
+		return total;
+	}
+
+	//All metrics as a JSON object, names sorted. Times are in milliseconds, latencies in microseconds.
+	public static String toJson() {
+		StringBuilder json = new StringBuilder("{\n  \"timers\": {");
+		String separator = "\n";
+		for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+			Timer timer = entry.getValue();
+			json.append(separator).append(String.format("    \"%s\": {\"count\": %d, \"totalMillis\": %.3f, \"allocatedBytes\": %d}",
+					entry.getKey(), timer.count.sum(), timer.nanos.sum() / 1e6, timer.allocatedBytes.sum()));
+			separator = ",\n";
+		}
+		json.append("\n  },\n  \"counters\": {");
+		separator = "\n";
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+			json.append(separator).append(String.format("    \"%s\": %d", entry.getKey(), entry.getValue().sum()));
+			separator = ",\n";
+		}
+		json.append("\n  },\n  \"histograms\": {");
+		separator = "\n";
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			synchronized (histogram) {
+				json.append(separator).append(String.format("    \"%s\": {\"count\": %d, \"meanMicros\": %.3f, \"p50Micros\": %.3f, \"p90Micros\": %.3f, \"p99Micros\": %.3f, \"p999Micros\": %.3f, \"maxMicros\": %.3f}",
+						entry.getKey(), histogram.getCount(), histogram.getMean() / 1e3, histogram.getPercentile(0.5) / 1e3, histogram.getPercentile(0.9) / 1e3,
+						histogram.getPercentile(0.99) / 1e3, histogram.getPercentile(0.999) / 1e3, histogram.getMax() / 1e3));
+			}
+			separator = ",\n";
+		}
+		json.append("\n  }\n}\n");
+		return json.toString();
+	}
+
+	//All metrics as CSV lines of type,name,statistic,value, with the same units as toJson.
+	public static String toCsv() {
+		StringBuilder csv = new StringBuilder("type,name,statistic,value\n");
+		for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+			Timer timer = entry.getValue();
+			csv.append("timer," + entry.getKey() + ",count," + timer.count.sum() + "\n");
+			csv.append("timer," + entry.getKey() + ",totalMillis," + String.format("%.3f", timer.nanos.sum() / 1e6) + "\n");
+			csv.append("timer," + entry.getKey() + ",allocatedBytes," + timer.allocatedBytes.sum() + "\n");
+		}
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+			csv.append("counter," + entry.getKey() + ",count," + entry.getValue().sum() + "\n");
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			synchronized (histogram) {
+				csv.append("histogram," + entry.getKey() + ",count," + histogram.getCount() + "\n");
+				csv.append("histogram," + entry.getKey() + ",meanMicros," + String.format("%.3f", histogram.getMean() / 1e3) + "\n");
+				csv.append("histogram," + entry.getKey() + ",p50Micros," + String.format("%.3f", histogram.getPercentile(0.5) / 1e3) + "\n");
+				csv.append("histogram," + entry.getKey() + ",p90Micros," + String.format("%.3f", histogram.getPercentile(0.9) / 1e3) + "\n");
+				csv.append("histogram," + entry.getKey() + ",p99Micros," + String.format("%.3f", histogram.getPercentile(0.99) / 1e3) + "\n");
+				csv.append("histogram," + entry.getKey() + ",p999Micros," + String.format("%.3f", histogram.getPercentile(0.999) / 1e3) + "\n");
+				csv.append("histogram," + entry.getKey() + ",maxMicros," + String.format("%.3f", histogram.getMax() / 1e3) + "\n");
+			}
+		}
+		return csv.toString();
+	}
+
+	//Writes the metrics to metricsFilePath, as CSV if it ends in .csv and JSON otherwise. The file is replaced, not appended to.
+	public static void write(String metricsFilePath) throws IOException {
+		String contents = metricsFilePath.endsWith(".csv") ? toCsv() : toJson();
+		Utilities.writeFileAtomically(metricsFilePath, contents);
+	}
+
+	//Writes the metrics to metricsFilePath every intervalSeconds from a daemon thread, until the returned executor is shut down.
+	public static ScheduledExecutorService writePeriodically(final String metricsFilePath, int intervalSeconds) {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics-export");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(metricsFilePath);
+				} catch (IOException e) {
+					System.err.println("Cannot write metrics file. " + e.getMessage());
+				}
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		return executor;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Trains a PCA + KNN model on a feature file and saves it for fast startup (see PcaKnnModel).
+ * The saved model is loaded back to report the load time, and if a test file is given its accuracy on that file.
+ *
+ * Usage: ModelTrainer trainingFile modelFile [numComponents] [k] [testFile]
+ * numComponents defaults to all features and k to 1.
+ *
+ * @author Scott Weaver
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+public class ModelTrainer {
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: ModelTrainer trainingFile modelFile [numComponents] [k] [testFile]");
+			return;
+		}
+		String trainingFilePath = args[0];
+		String modelFilePath = args[1];
+
+		try {
+			FeatureMatrix trainingData = new FeatureMatrix();
+			ClassLabels trainingClassification = new ClassLabels(new ClassDictionary());
+			String columnHeaders = PcaKnn.readFeatureFile(trainingFilePath, trainingData, trainingClassification);
+			ArrayList<String> featureNames = PcaKnn.getColumnHeaders(columnHeaders);
+
+			int numComponents = args.length > 2 ? Integer.parseInt(args[2]) : featureNames.size();
+			int k = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+			ForkJoinPool pool = new ForkJoinPool();
+			long start = System.nanoTime();
+			PcaKnnModel model = PcaKnnModel.train(trainingData, trainingClassification, featureNames, numComponents, k, pool);
+			pool.shutdown();
+			System.out.println("Trained on " + trainingData.getNumRows() + " rows in " + (System.nanoTime() - start) / 1e6 + " ms");
+
+			model.save(modelFilePath);
+
+			start = System.nanoTime();
+			model = PcaKnnModel.load(modelFilePath);
+			System.out.println("Loaded " + modelFilePath + " in " + (System.nanoTime() - start) / 1e6 + " ms");
+
+			if (args.length > 4) {
+				FeatureMatrix testData = new FeatureMatrix();
+				ClassLabels testClassification = new ClassLabels(new ClassDictionary());
+				if (!columnHeaders.equals(PcaKnn.readFeatureFile(args[4], testData, testClassification))) {
+					System.err.println("Features inconsistent between Test File and Training File (mismatching headers).");
+					return;
+				}
+
+				int count = 0;
+				for (int i = 0; i < testData.getNumRows(); i++) {
+					if (model.classify(testData.getRow(i)).equals(testClassification.getName(i))) {
+						count++;
+					}
+				}
+				System.out.println("Accuracy: " + count + "/" + testData.getNumRows() + " = " + ((double) count) / testData.getNumRows());
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot train model. " + e.getMessage());
+		}
+	}
+}
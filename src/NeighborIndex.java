@@ -0,0 +1,13 @@
+/*
+ * Exact k-nearest neighbor search over a fixed set of training points.
+ * Implementations are built once per training set and then queried once per test point.
+ * Results are written into a TopKSelector in ascending order of distance, ties broken by the smaller training index,
+ * so every implementation returns the same neighbors as Utilities.performKNN.
+ *
+ * @author Scott Weaver
+ */
+public interface NeighborIndex {
+
+	//Clears selector and fills it with the selector.getK() training points nearest to the test point starting at testData[testOffset].
+	void search(double[] testData, int testOffset, TopKSelector selector);
+}
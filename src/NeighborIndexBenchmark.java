@@ -0,0 +1,96 @@
+/*
+ * Compares brute force and KD-tree KNN search on synthetic data of increasing dimensionality,
+ * to find the point where the tree stops paying off (used to pick PcaKnn.KD_TREE_MAX_DIMENSIONS).
+ * Each point is drawn from a few Gaussian clusters like the road classes, so the data has some structure.
+ * The neighbors found by both searches are also compared, so the benchmark doubles as an exactness check.
+ *
+ * Usage: NeighborIndexBenchmark [numTrainingData] [numTestData] [maxDimensions] [k]
+ *
+ * @author Scott Weaver
+ */
+import java.util.Random;
+
+public class NeighborIndexBenchmark {
+
+	private static int NUM_CLUSTERS = 4;
+	private static int NUM_REPEATS = 5;
+
+	public static void main(String[] args) {
+		int numTrainingData = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int numTestData = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int maxDimensions = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int k = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+		System.out.println("Training Data: " + numTrainingData + ", Test Data: " + numTestData + ", k = " + k);
+		System.out.println("Dimensions,Brute Force (ms),KD-Tree Build (ms),KD-Tree Search (ms),Speedup");
+
+		for (int numDimensions = 1; numDimensions <= maxDimensions; numDimensions++) {
+			Random random = new Random(numDimensions);
+			FeatureMatrix trainingData = generateData(random, numTrainingData, numDimensions);
+			FeatureMatrix testData = generateData(random, numTestData, numDimensions);
+
+			NeighborIndex bruteForce = new BruteForceIndex(trainingData);
+
+			long buildStart = System.nanoTime();
+			NeighborIndex kdTree = new KdTree(trainingData);
+			double buildMillis = (System.nanoTime() - buildStart) / 1e6;
+
+			checkSameNeighbors(bruteForce, kdTree, testData, k);
+
+			double bruteMillis = Double.MAX_VALUE;
+			double treeMillis = Double.MAX_VALUE;
+			for (int repeat = 0; repeat < NUM_REPEATS; repeat++) {
+				bruteMillis = Math.min(bruteMillis, timeSearch(bruteForce, testData, k));
+				treeMillis = Math.min(treeMillis, timeSearch(kdTree, testData, k));
+			}
+
+			System.out.println(numDimensions + "," + String.format("%.2f,%.2f,%.2f,%.2f", bruteMillis, buildMillis, treeMillis, bruteMillis / (treeMillis + buildMillis)));
+		}
+	}
+
+	private static FeatureMatrix generateData(Random random, int size, int numDimensions) {
+		FeatureMatrix data = new FeatureMatrix(size, numDimensions);
+
+		for (int i = 0; i < size; i++) {
+			int cluster = random.nextInt(NUM_CLUSTERS);
+			for (int d = 0; d < numDimensions; d++) {
+				data.set(i, d, (cluster + 1.0) / (NUM_CLUSTERS + 1.0) + 0.1 * random.nextGaussian());
+			}
+		}
+
+		return data;
+	}
+
+	private static double timeSearch(NeighborIndex neighborIndex, FeatureMatrix testData, int k) {
+		TopKSelector selector = new TopKSelector(k);
+		long checksum = 0;
+
+		long start = System.nanoTime();
+		for (int i = 0; i < testData.getNumRows(); i++) {
+			neighborIndex.search(testData.getData(), testData.getRowOffset(i), selector);
+			checksum += selector.getIndex(0);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		if (checksum < 0) {
+			System.out.println(checksum);
+		}
+		return elapsed / 1e6;
+	}
+
+	private static void checkSameNeighbors(NeighborIndex expected, NeighborIndex actual, FeatureMatrix testData, int k) {
+		TopKSelector expectedSelector = new TopKSelector(k);
+		TopKSelector actualSelector = new TopKSelector(k);
+
+		for (int t = 0; t < testData.getNumRows(); t++) {
+			expected.search(testData.getData(), testData.getRowOffset(t), expectedSelector);
+			actual.search(testData.getData(), testData.getRowOffset(t), actualSelector);
+
+			for (int i = 0; i < expectedSelector.size(); i++) {
+				if (expectedSelector.getIndex(i) != actualSelector.getIndex(i)) {
+					throw new IllegalStateException("Neighbor " + i + " differs: " + expectedSelector.getIndex(i) + " != " + actualSelector.getIndex(i));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * PCA + KNN for training sets larger than the heap. Neither the training nor the test file is ever held in memory:
+ *
+ *   pass 1   the training file is streamed in chunks of CHUNK_ROWS rows, each accumulated into the mean and covariance
+ *   fit      the principal components are computed from the covariance, which only depends on the number of features
+ *   pass 2   the training file is streamed again; each chunk is projected and written to a binary feature file, the store
+ *   test     the test file is streamed in batches of QUERY_BATCH_ROWS rows; each batch is projected and searched in one
+ *            blocked pass over the memory-mapped store (see MappedFeatureStore), then classified by majority vote
+ *
+ * The heap holds one chunk, one batch and a block buffer per thread, whatever the size of the files. The neighbors are
+ * the same as those of an in-memory brute force search of the same projection.
+ *
+ * Usage: OutOfCorePcaKnn trainingFile testFile storeFile [numComponents] [k]
+ * The feature files may be CSV or binary (see FeatureFileConverter). numComponents defaults to all features and k to 1.
+ *
+ * @author Scott Weaver
+ */
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+public class OutOfCorePcaKnn {
+	//training rows read and projected at a time
+	private static int CHUNK_ROWS = 65536;
+	//test rows searched together in one pass over the store
+	private static int QUERY_BATCH_ROWS = 256;
+	//true stores the projection as floats, halving the size of the store and of each scan
+	private static boolean USE_FLOAT_STORE = false;
+
+	private final ClassDictionary dictionary = new ClassDictionary();
+	private final ForkJoinPool pool;
+
+	private String columnHeaders;
+	private CovarianceAccumulator accumulator;
+	private ProjectionEngine projection;
+	private int numComponents;
+	private long numTestData;
+
+	public OutOfCorePcaKnn(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	//Reads featureFilePath chunkRows rows at a time, whether it is a CSV or a binary feature file. Returns the header line.
+	private String readChunks(String featureFilePath, int chunkRows, FeatureFileReader.ChunkHandler handler) throws IOException {
+		if (BinaryFeatureFile.isBinaryFeatureFile(featureFilePath)) {
+			return BinaryFeatureFile.read(featureFilePath, dictionary, chunkRows, handler);
+		}
+		return FeatureFileReader.read(featureFilePath, dictionary, chunkRows, handler);
+	}
+
+	//Pass 1: accumulates the mean and covariance of the training file and fits the top numComponents principal components,
+	//or all of them if numComponents is 0.
+	public void fit(String trainingFilePath, int numComponents) throws IOException {
+		accumulator = null;
+		Metrics.Stopwatch stopwatch = Metrics.start("outOfCoreCovariance");
+		columnHeaders = readChunks(trainingFilePath, CHUNK_ROWS, new FeatureFileReader.ChunkHandler() {
+			@Override
+			public void handleChunk(FeatureMatrix chunkData, ClassLabels chunkClassification) {
+				CovarianceAccumulator chunkAccumulator = Utilities.getCovarianceAccumulator(chunkData, chunkData.getNumColumns(), pool);
+				if (accumulator == null) {
+					accumulator = chunkAccumulator;
+				} else {
+					accumulator.merge(chunkAccumulator);
+				}
+			}
+		});
+		stopwatch.stop();
+		if (accumulator == null || accumulator.getCount() < 2) {
+			throw new IOException(trainingFilePath + ": at least two training rows are needed");
+		}
+
+		int numFeatures = accumulator.getNumFeatures();
+		if (numComponents == 0) {
+			numComponents = numFeatures;
+		}
+		if (numComponents < 1 || numComponents > numFeatures) {
+			throw new IllegalArgumentException("Number of components must be between 1 and " + numFeatures + ": " + numComponents);
+		}
+		this.numComponents = numComponents;
+		projection = new ProjectionEngine(accumulator.getMean(), new PcaModel(accumulator.getCovarianceMatrix()).getEigenvectorMatrix(numComponents));
+	}
+
+	//Pass 2: projects the training file onto the components and writes it to storeFilePath.
+	public void writeStore(String trainingFilePath, String storeFilePath) throws IOException {
+		if (accumulator.getCount() > Integer.MAX_VALUE) {
+			throw new IOException(trainingFilePath + ": too many rows for one store");
+		}
+		StringBuilder storeHeaders = new StringBuilder(columnHeaders.substring(0, Math.max(0, columnHeaders.indexOf(','))));
+		for (int j = 1; j <= numComponents; j++) {
+			storeHeaders.append(",PC" + j);
+		}
+
+		Metrics.Stopwatch stopwatch = Metrics.start("outOfCoreProjection");
+		try (final BinaryFeatureFile.Writer writer = new BinaryFeatureFile.Writer(storeFilePath, storeHeaders.toString(), dictionary, (int) accumulator.getCount(), numComponents, USE_FLOAT_STORE)) {
+			String headers = readChunks(trainingFilePath, CHUNK_ROWS, new FeatureFileReader.ChunkHandler() {
+				@Override
+				public void handleChunk(FeatureMatrix chunkData, ClassLabels chunkClassification) throws IOException {
+					writer.append(project(chunkData), chunkClassification);
+				}
+			});
+			if (!headers.equals(columnHeaders)) {
+				throw new IOException(trainingFilePath + " changed between passes");
+			}
+		}
+		stopwatch.stop();
+	}
+
+	private FeatureMatrix project(FeatureMatrix chunkData) {
+		return projection.project(chunkData, pool);
+	}
+
+	//Classifies every row of the test file against the store with k neighbors. Returns the number classified correctly.
+	public long evaluate(String testFilePath, String storeFilePath, final int k) throws IOException {
+		//correct classifications and test rows
+		final long[] counts = new long[2];
+		try (final MappedFeatureStore store = new MappedFeatureStore(storeFilePath, dictionary)) {
+			String headers = readChunks(testFilePath, QUERY_BATCH_ROWS, new FeatureFileReader.ChunkHandler() {
+				@Override
+				public void handleChunk(FeatureMatrix chunkData, ClassLabels chunkClassification) {
+					FeatureMatrix queries = project(chunkData);
+					Metrics.Stopwatch stopwatch = Metrics.start("outOfCoreSearch");
+					TopKSelector[] selectors = store.search(queries.getData(), queries.getNumRows(), k, pool);
+					stopwatch.stop();
+
+					int[] numOccurances = new int[dictionary.size()];
+					BatchClassifier.Result result = new BatchClassifier.Result(selectors.length);
+					for (int q = 0; q < selectors.length; q++) {
+						BatchClassifier.vote(selectors[q], store, numOccurances, result, q);
+						if (result.predictedClassification[q] == chunkClassification.getId(q)) {
+							counts[0]++;
+						}
+					}
+					counts[1] += selectors.length;
+				}
+			});
+			if (!headers.equals(columnHeaders)) {
+				throw new IOException("Features inconsistent between Test File and Training File (mismatching headers).");
+			}
+		}
+		Metrics.increment("outOfCoreQueries", counts[1]);
+		numTestData = counts[1];
+		return counts[0];
+	}
+
+	public long getNumTrainingData() {
+		return accumulator.getCount();
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	//Number of test rows classified by the last evaluate.
+	public long getNumTestData() {
+		return numTestData;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println("Usage: OutOfCorePcaKnn trainingFile testFile storeFile [numComponents] [k]");
+			return;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			OutOfCorePcaKnn classifier = new OutOfCorePcaKnn(pool);
+
+			int numComponents = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+			int k = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+			long start = System.nanoTime();
+			classifier.fit(args[0], numComponents);
+			System.out.println("Fitted " + classifier.getNumComponents() + " components to " + classifier.getNumTrainingData() + " rows in " + (System.nanoTime() - start) / 1e6 + " ms");
+
+			start = System.nanoTime();
+			classifier.writeStore(args[0], args[2]);
+			System.out.println("Wrote " + args[2] + " in " + (System.nanoTime() - start) / 1e6 + " ms");
+
+			start = System.nanoTime();
+			long count = classifier.evaluate(args[1], args[2], k);
+			long numTestData = classifier.getNumTestData();
+			System.out.println("Classified " + numTestData + " rows in " + (System.nanoTime() - start) / 1e6 + " ms");
+			System.out.println("Accuracy: " + count + "/" + numTestData + " = " + ((double) count) / numTestData);
+		} catch (IOException e) {
+			System.err.println("Cannot classify out of core. " + e.getMessage());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
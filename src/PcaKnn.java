@@ -13,16 +13,16 @@
  * @author Scott Weaver
  */
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-
-import Jama.Matrix;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class PcaKnn {
 
@@ -33,148 +33,304 @@ public class PcaKnn {
     private static String RESULTS_FILE_PATH = "Data/results.csv";
     //Knn will be performed using k = K_VALUE
     private static int K_VALUE = 1;
+    //true keeps only the K_VALUE nearest neighbors per query, false sorts the whole training set by distance
+    private static boolean USE_TOP_K_SEARCH = true;
+    //top-k search uses a KD-tree when the data has at most this many dimensions, otherwise a linear scan (see NeighborIndexBenchmark);
+    //shared by every class that picks a neighbor index
+    static int KD_TREE_MAX_DIMENSIONS = 10;
+    //true computes the distances for every step of the feature and component tests in one pass, false runs a separate search per step
+    private static boolean USE_INCREMENTAL_DISTANCES = true;
+    //true classifies the whole test set of each step of the component test through matrix multiplication (see MatrixDistanceIndex)
+    //when the distances are not computed incrementally; false searches one test point at a time
+    private static boolean USE_MATRIX_DISTANCES = false;
+    //true keeps the training data of brute force searches as floats, halving the memory each scan reads
+    private static boolean USE_FLOAT_STORAGE = false;
+    //true also classifies the PCA projection with approximate (IVF) searches of increasing accuracy and reports their speed
+    private static boolean USE_APPROXIMATE_SEARCH_TEST = true;
+    //number of k-means cells of the approximate search; 0 uses the square root of the number of training points
+    private static int IVF_NUM_CELLS = 0;
+    //comma-separated reductions applied to the training data before the tests, e.g. "enn,cnn" (see TrainingSetCondenser); null keeps every point
+    private static String CONDENSATION_METHODS = null;
+    //every search of the approximate search test runs untimed for WARM_UP_MILLIS before any is timed; the searches are then
+    //timed in turn for NUM_TIMING_ROUNDS rounds of ROUND_MILLIS each and their fastest round is reported
+    //(see BatchClassifier.measureQueriesPerSecond)
+    private static int WARM_UP_MILLIS = 100;
+    private static int NUM_TIMING_ROUNDS = 5;
+    private static int ROUND_MILLIS = 50;
+    //number of threads used to classify the test data
+    private static int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    //LOG_DEBUG also prints the predicted classification of every test point
+    private static final int LOG_INFO = 0;
+    private static final int LOG_DEBUG = 1;
+    private static int LOG_LEVEL = LOG_INFO;
+    //timers, counters and latencies of the run are written here at the end, as CSV if the path ends in .csv and JSON otherwise; null disables them
+    private static String METRICS_FILE_PATH = "Data/metrics.json";
+    //when positive, the metrics file is also rewritten this often during the run
+    private static int METRICS_EXPORT_INTERVAL_SECONDS = 0;
+    //longest wait at exit for a periodic export that is still writing
+    private static int METRICS_SHUTDOWN_TIMEOUT_SECONDS = 10;
     
 	public static void main(String[] args) {
 		
 		System.out.println("Training File Path: " + TRAINING_FILE_PATH);
 		System.out.println("Test File Path: " + TEST_FILE_PATH);
 		
-		ArrayList<double[]> trainingData = new ArrayList<>();
-		ArrayList<double[]> testData = new ArrayList<>();
-		ArrayList<String> trainingClassification = new ArrayList<>();
-		ArrayList<String> testClassification = new ArrayList<>();
+		Metrics.setEnabled(METRICS_FILE_PATH != null);
+		ScheduledExecutorService metricsExporter = null;
+		if (METRICS_FILE_PATH != null && METRICS_EXPORT_INTERVAL_SECONDS > 0) {
+			metricsExporter = Metrics.writePeriodically(METRICS_FILE_PATH, METRICS_EXPORT_INTERVAL_SECONDS);
+		}
+		
+		FeatureMatrix trainingData = new FeatureMatrix();
+		FeatureMatrix testData = new FeatureMatrix();
+		//training and test classifications share ids so they can be compared directly
+		ClassDictionary classDictionary = new ClassDictionary();
+		ClassLabels trainingClassification = new ClassLabels(classDictionary);
+		ClassLabels testClassification = new ClassLabels(classDictionary);
 		//featureList is a list of features in ascending order of variance
 		ArrayList<String> featuresOrderedByVariance = new ArrayList<>();
 		ArrayList<String> features = new ArrayList<>();
-		ArrayList<String> resultsFeature = new ArrayList<>();
-		ArrayList<String> resultsComponent = new ArrayList<>();
 		
 		if ((new File(TEST_FILE_PATH)).isFile() && (new File(TRAINING_FILE_PATH)).isFile() && (new File(FEATURE_LIST_PATH)).isFile()) {
-			String trainingColumnHeaders = readFeatureFile(TRAINING_FILE_PATH, trainingData, trainingClassification);
-			String testColumnHeaders = readFeatureFile(TEST_FILE_PATH, testData, testClassification);
+			String trainingColumnHeaders = null;
+			String testColumnHeaders = null;
+			try {
+				trainingColumnHeaders = readFeatureFile(TRAINING_FILE_PATH, trainingData, trainingClassification);
+				testColumnHeaders = readFeatureFile(TEST_FILE_PATH, testData, testClassification);
+			} catch (IOException e) {
+				System.err.println("Cannot read feature file. " + e.getMessage());
+			}
 			
-			if (trainingColumnHeaders.equals(testColumnHeaders)) {
+			if (trainingColumnHeaders == null || testColumnHeaders == null) {
+				System.err.println("Test File or Training File could not be read.");
+			} else if (trainingColumnHeaders.equals(testColumnHeaders)) {
 				readFeatureListFile(FEATURE_LIST_PATH, featuresOrderedByVariance);
 				Collections.reverse(featuresOrderedByVariance);
 				features = getColumnHeaders(testColumnHeaders);
 				
-				performPrincipalFeatureTest(trainingData, trainingClassification, testData, testClassification, features, featuresOrderedByVariance, resultsFeature);
+				ForkJoinPool pool = new ForkJoinPool(NUM_THREADS);
 				
-				performPrincipalComponentTest(trainingData, trainingClassification, testData, testClassification, features, resultsComponent);
+				PreparedTrainingSet trainingSet = prepareTrainingSet(trainingData, trainingClassification, pool, System.out);
+				try {
+					evaluate(trainingSet, trainingSet.classification, testData, testClassification, features, featuresOrderedByVariance, RESULTS_FILE_PATH, pool, System.out);
+					evaluateApproximateSearch(trainingSet, trainingSet.classification, testData, testClassification, pool, System.out);
+				} catch (IOException e) {
+					System.err.println("Cannot write results file. " + e.getMessage());
+				}
 				
-				writeResultsFile(RESULTS_FILE_PATH, resultsFeature, resultsComponent);
+				pool.shutdown();
 			} else {
 				System.err.println("Features inconsistent between Test File and Training File (mismatching headers).");
 			}
 		} else {
 			System.err.println("Test File or Training File does not exist.");
 		}
+		
+		if (metricsExporter != null) {
+			//cancels the periodic exports and lets one already running finish, so it does not race the final one
+			metricsExporter.shutdown();
+			try {
+				metricsExporter.awaitTermination(METRICS_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (METRICS_FILE_PATH != null) {
+			try {
+				Metrics.write(METRICS_FILE_PATH);
+			} catch (IOException e) {
+				System.err.println("Cannot write metrics file. " + e.getMessage());
+			}
+		}
+	}
+	
+	//The training data of a dataset ready for the tests: condensed if CONDENSATION_METHODS is set, with the principal
+	//components fitted to it and its projection onto all of them. It only depends on the training file.
+	static class PreparedTrainingSet {
+		final FeatureMatrix data;
+		final ClassLabels classification;
+		//centered on the training mean, onto every component
+		final ProjectionEngine projection;
+		final FeatureMatrix projectedData;
+		
+		PreparedTrainingSet(FeatureMatrix data, ClassLabels classification, ProjectionEngine projection, FeatureMatrix projectedData) {
+			this.data = data;
+			this.classification = classification;
+			this.projection = projection;
+			this.projectedData = projectedData;
+		}
+	}
+	
+	static PreparedTrainingSet prepareTrainingSet(FeatureMatrix trainingData, ClassLabels trainingClassification, ForkJoinPool pool, PrintStream out) {
+		if (CONDENSATION_METHODS != null) {
+			TrainingSetCondenser.TrainingSet condensedSet = TrainingSetCondenser.condense(CONDENSATION_METHODS, new TrainingSetCondenser.TrainingSet(trainingData, trainingClassification), pool);
+			out.println("Condensed Training Data (" + CONDENSATION_METHODS + "): " + trainingData.getNumRows() + " -> " + condensedSet.size() + " points");
+			trainingData = condensedSet.data;
+			trainingClassification = condensedSet.classification;
+		}
+		
+		//decompose once and project onto every component; fewer components are a truncation of this projection
+		int numFeatures = trainingData.getNumColumns();
+		CovarianceAccumulator accumulator = Utilities.getCovarianceAccumulator(trainingData, numFeatures, pool);
+		ProjectionEngine projection = new ProjectionEngine(accumulator.getMean(), new PcaModel(accumulator.getCovarianceMatrix()).getEigenvectorMatrix(numFeatures));
+		return new PreparedTrainingSet(trainingData, trainingClassification, projection, projection.project(trainingData, pool));
+	}
+	
+	//Runs the tests of one dataset, printing their progress to out, and replaces the file at resultsFilePath with their accuracies.
+	//trainingClassification labels the rows of trainingSet with the same dictionary as testClassification.
+	static void evaluate(PreparedTrainingSet trainingSet, ClassLabels trainingClassification, FeatureMatrix testData, ClassLabels testClassification, ArrayList<String> features, ArrayList<String> featuresOrderedByVariance, String resultsFilePath, ForkJoinPool pool, PrintStream out) throws IOException {
+		ArrayList<String> resultsFeature = new ArrayList<>();
+		ArrayList<String> resultsComponent = new ArrayList<>();
+		
+		performPrincipalFeatureTest(trainingSet.data, trainingClassification, testData, testClassification, features, featuresOrderedByVariance, resultsFeature, pool, out);
+		
+		//the test data is centered on the training mean, like the training data
+		FeatureMatrix projectedTestData = trainingSet.projection.project(testData, pool);
+		performPrincipalComponentTest(trainingSet.projectedData, trainingClassification, projectedTestData, testClassification, features, resultsComponent, pool, out);
+		
+		writeResultsFile(resultsFilePath, resultsFeature, resultsComponent);
+	}
+	
+	//Runs the approximate search test of one dataset if USE_APPROXIMATE_SEARCH_TEST is set. It reports queries per second,
+	//so it should have the pool to itself.
+	static void evaluateApproximateSearch(PreparedTrainingSet trainingSet, ClassLabels trainingClassification, FeatureMatrix testData, ClassLabels testClassification, ForkJoinPool pool, PrintStream out) {
+		if (USE_APPROXIMATE_SEARCH_TEST) {
+			performApproximateSearchTest(trainingSet.projectedData, trainingClassification, trainingSet.projection.project(testData, pool), testClassification, pool, out);
+		}
 	}
 	
-	private static void performPrincipalFeatureTest(ArrayList<double[]> trainingData, ArrayList<String> trainingClassification, ArrayList<double[]> testData, ArrayList<String> testClassification, ArrayList<String> features, ArrayList<String> featuresOrderedByVariance, ArrayList<String> results) {
-		int numTestData = testData.size();
-		int numTrainingData = trainingData.size();
+	//The settings that change the results of evaluate, so a results file can be matched to the settings it was made with.
+	static String getSettings() {
+		return "k=" + K_VALUE + ",floatStorage=" + USE_FLOAT_STORAGE + ",condensation=" + CONDENSATION_METHODS;
+	}
+	
+	private static void performPrincipalFeatureTest(FeatureMatrix trainingData, ClassLabels trainingClassification, FeatureMatrix testData, ClassLabels testClassification, ArrayList<String> features, ArrayList<String> featuresOrderedByVariance, ArrayList<String> results, ForkJoinPool pool, PrintStream out) {
+		int numTestData = testData.getNumRows();
 		int numFeatures = featuresOrderedByVariance.size();
+		int numColumns = features.size();
 		int numRemoved = 0;
 		
-		//MAKE A COPY OF TRAINING AND TEST DATA FIRST
-        ArrayList<double[]> trainingDataCopy = arrayDeepCopy(trainingData, numTestData);
-        ArrayList<double[]> testDataCopy = arrayDeepCopy(testData, numTrainingData);
-        ArrayList<String> featuresCopy = new ArrayList<>(numFeatures);
-        for (String str : features) {
-        	featuresCopy.add(str);
-        }
+		//after numRemoved features are removed, the remaining columns are the first numColumns - numRemoved of columnOrder
+		int[] columnOrder = getColumnOrder(features, featuresOrderedByVariance);
+		
+		//the incremental sweep classifies with every number of removed features at once
+		BatchClassifier.Result[] sweepResults = null;
+		if (USE_INCREMENTAL_DISTANCES) {
+			PrefixDistanceSweep sweep = new PrefixDistanceSweep(trainingData, trainingClassification, columnOrder, K_VALUE, pool);
+			sweepResults = sweep.classify(testData, testClassification);
+		}
         
 		for (String featureToRemove : featuresOrderedByVariance) {
-			System.out.println("-----------------------------------");
-			System.out.println("Removed Feature: " + featureToRemove);
-			System.out.println();
-			System.out.println("KNN Classification Accuracy");
+			out.println("-----------------------------------");
+			out.println("Removed Feature: " + featureToRemove);
+			out.println();
+			out.println("KNN Classification Accuracy");
 	        
 			//For each test data point, perform KNN using k=K_VALUE
-			int count = 0;
-			for (int i = 0; i < numTestData; i++) {
-				double[] test = testDataCopy.get(i);
-				String actualClassification = testClassification.get(i);
-				
-				ArrayList<DistObj> distanceObjects = Utilities.performKNN(trainingDataCopy, test);
-				
-				String predictedClassification = getPredictedClassification(distanceObjects, trainingClassification, K_VALUE);
-				
-				if (actualClassification.equals(predictedClassification)) {
-					count++;
-				}	
+			int numActive = numColumns - numRemoved;
+			BatchClassifier.Result result;
+			if (sweepResults != null) {
+				result = sweepResults[numActive - 1];
+			} else {
+				//the distance only reads the active columns, so removing a feature does not copy any data
+				NeighborIndex neighborIndex = new ColumnSubsetIndex(trainingData, Arrays.copyOf(columnOrder, numActive));
+				result = new BatchClassifier(neighborIndex, trainingClassification, K_VALUE, pool).classify(testData, testClassification);
 			}
+			printPredictedClassifications(result, trainingClassification.getDictionary(), K_VALUE, out);
+			int count = result.count;
 			
-			System.out.println();
-			System.out.println("KNN Feature Accuracy");
+			out.println();
+			out.println("KNN Feature Accuracy");
 			//print out the percentage of correctly classified tests using that k for KNN.
 			
 			double acc = ((double) count) / numTestData;
-			System.out.println(numRemoved + " / " + numFeatures + " removed:\t" + count + "/" + numTestData + " = " + acc);
-			System.out.println();
+			out.println(numRemoved + " / " + numFeatures + " removed:\t" + count + "/" + numTestData + " = " + acc);
+			out.println();
 			results.add(String.valueOf(acc));
 			
-			//REMOVE FEATURE AT INDEX featureToRemove
-			int indexToRemove = 0;
-			for (String feature : featuresCopy) {
-				if (feature.equals(featureToRemove)) {
-					break;
-				}
-				indexToRemove++;
-			}
-			featuresCopy.remove(indexToRemove);			
-			arrayRemoveFeature(trainingDataCopy, numTrainingData, indexToRemove);
-			arrayRemoveFeature(testDataCopy, numTestData, indexToRemove);
 	        numRemoved++;
 		}
 	}
 	
-	private static void performPrincipalComponentTest(ArrayList<double[]> trainingData, ArrayList<String> trainingClassification, ArrayList<double[]> testData, ArrayList<String> testClassification, ArrayList<String> features, ArrayList<String> results) {
+	//Returns the column indices in reverse order of removal: columns that are never removed first, then the last feature removed, down to the first.
+	static int[] getColumnOrder(ArrayList<String> features, ArrayList<String> featuresOrderedByVariance) {
+		int numColumns = features.size();
+		int[] columnOrder = new int[numColumns];
+		boolean[] removed = new boolean[numColumns];
+		
+		int position = numColumns;
+		for (String featureToRemove : featuresOrderedByVariance) {
+			int indexToRemove = features.indexOf(featureToRemove);
+			if (indexToRemove < 0 || removed[indexToRemove]) {
+				throw new IllegalArgumentException("Feature list does not match the feature file: " + featureToRemove);
+			}
+			removed[indexToRemove] = true;
+			position--;
+			columnOrder[position] = indexToRemove;
+		}
+		
+		position = 0;
+		for (int i = 0; i < numColumns; i++) {
+			if (!removed[i]) {
+				columnOrder[position] = i;
+				position++;
+			}
+		}
+		
+		return columnOrder;
+	}
+	
+	//fullTrainingData and fullTestData are projected onto every principal component, most significant first.
+	private static void performPrincipalComponentTest(FeatureMatrix fullTrainingData, ClassLabels trainingClassification, FeatureMatrix fullTestData, ClassLabels testClassification, ArrayList<String> features, ArrayList<String> results, ForkJoinPool pool, PrintStream out) {
 		int numFeatures = features.size();
-		int numTestData = testData.size();
-		double dataAverage[] = new double[numFeatures];
+		int numTestData = fullTestData.getNumRows();
+		
+		//the incremental sweep classifies with every number of components at once, adding components in order of significance
+		BatchClassifier.Result[] sweepResults = null;
+		if (USE_INCREMENTAL_DISTANCES) {
+			int[] columnOrder = new int[numFeatures];
+			for (int i = 0; i < numFeatures; i++) {
+				columnOrder[i] = i;
+			}
+			PrefixDistanceSweep sweep = new PrefixDistanceSweep(fullTrainingData, trainingClassification, columnOrder, K_VALUE, pool);
+			sweepResults = sweep.classify(fullTestData, testClassification);
+		}
 		
-		getAverage(trainingData, dataAverage);
-    	
-		double[][] covarianceMatrix = Utilities.getCovarianceMatrix(trainingData, dataAverage, numFeatures);
-	            
 		int numRemoved = 0;
         
 		for (int numComponents = numFeatures; numComponents > 0; numComponents--) {
-			System.out.println("-----------------------------------");
-			System.out.println("Removed Component: " + numComponents);
-			System.out.println();
-			System.out.println("KNN Classification Accuracy");
+			out.println("-----------------------------------");
+			out.println("Removed Component: " + numComponents);
+			out.println();
+			out.println("KNN Classification Accuracy");
 			
-			Matrix eigenVectorMatrix = Utilities.getEigenvectorMatrix(covarianceMatrix, numFeatures, numComponents);
-	    	//use eigenvectors to calculate the reduced data set
-	        ArrayList<double[]> newTrainingData = Utilities.calculatePCA(trainingData, eigenVectorMatrix);
-	        //use the same eigenvectors to reduce the test data to fit in the same dimensionality as the training data
-	        ArrayList<double[]> newTestData = Utilities.calculatePCA(testData, eigenVectorMatrix);
-	        
 			//For each test data point, perform KNN using k=K_VALUE
-			int count = 0;
-			for (int i = 0; i < numTestData; i++) {
-				double[] test = newTestData.get(i);
-				String actualClassification = testClassification.get(i);
-				
-				ArrayList<DistObj> distanceObjects = Utilities.performKNN(newTrainingData, test);
-				
-				String predictedClassification = getPredictedClassification(distanceObjects, trainingClassification, K_VALUE);
-				
-				if (actualClassification.equals(predictedClassification)) {
-					count++;
-				}	
+			BatchClassifier.Result result;
+			if (sweepResults != null) {
+				result = sweepResults[numComponents - 1];
+			} else {
+		    	//keep the numComponents most significant components of the reduced data set
+		        FeatureMatrix newTrainingData = Utilities.truncateComponents(fullTrainingData, numComponents);
+		        //reduce the test data the same way to fit in the same dimensionality as the training data
+		        FeatureMatrix newTestData = Utilities.truncateComponents(fullTestData, numComponents);
+		        
+				if (USE_MATRIX_DISTANCES) {
+					result = new MatrixDistanceIndex(newTrainingData, pool).classify(newTestData, testClassification, trainingClassification, K_VALUE);
+				} else {
+					BatchClassifier classifier = new BatchClassifier(buildNeighborIndex(newTrainingData), trainingClassification, K_VALUE, pool);
+					result = classifier.classify(newTestData, testClassification);
+				}
 			}
+			printPredictedClassifications(result, trainingClassification.getDictionary(), K_VALUE, out);
+			int count = result.count;
 			
-			System.out.println();
-			System.out.println("KNN Component Accuracy");
+			out.println();
+			out.println("KNN Component Accuracy");
 			//print out the percentage of correctly classified tests using that k for KNN.
 			
 			double acc = ((double) count) / numTestData;
-			System.out.println(numRemoved + " / " + numFeatures + " removed:\t" + count + "/" + numTestData + " = " + acc);
-			System.out.println();
+			out.println(numRemoved + " / " + numFeatures + " removed:\t" + count + "/" + numTestData + " = " + acc);
+			out.println();
 			results.add(String.valueOf(acc));
 			
 			numRemoved++;
@@ -182,78 +338,110 @@ public class PcaKnn {
 		}
 	}
 	
-	//dataAverage will contain the average value for each feature (column)
-	private static void getAverage(ArrayList<double[]> featureData, double[] dataAverage) {
-		int dataSize = featureData.size();
-		int numFeatures = dataAverage.length;
+	//Classifies the test data projected onto every principal component with the exact search and with IVF searches
+	//probing 1, 2, 4, ... cells, and prints the accuracy, recall and queries per second of each to pick an operating point.
+	private static void performApproximateSearchTest(FeatureMatrix projectedTrainingData, ClassLabels trainingClassification, FeatureMatrix projectedTestData, ClassLabels testClassification, ForkJoinPool pool, PrintStream out) {
+		int numCells = IVF_NUM_CELLS > 0 ? IVF_NUM_CELLS : (int) Math.ceil(Math.sqrt(projectedTrainingData.getNumRows()));
+		long buildStart = System.nanoTime();
+		IvfIndex ivfIndex = new IvfIndex(projectedTrainingData, numCells, 0);
+		double buildMillis = (System.nanoTime() - buildStart) / 1e6;
 		
-		for (double[] data : featureData) {
-			for (int i = 0; i < numFeatures; i++) {
-				dataAverage[i] += data[i];
+		out.println("-----------------------------------");
+		out.println("Approximate Search: " + ivfIndex.getNumCells() + " cells, built in " + String.format("%.2f", buildMillis) + " ms");
+		out.println();
+		out.println("Probes\tAccuracy\tRecall\tQueries/s");
+		
+		NeighborIndex exactIndex = buildNeighborIndex(projectedTrainingData);
+		ArrayList<String> settings = new ArrayList<>();
+		ArrayList<NeighborIndex> neighborIndexes = new ArrayList<>();
+		settings.add("exact");
+		neighborIndexes.add(exactIndex);
+		//an empty training set has no cells to probe
+		for (int numProbes = 1; ivfIndex.getNumCells() > 0; numProbes *= 2) {
+			numProbes = Math.min(numProbes, ivfIndex.getNumCells());
+			settings.add(String.valueOf(numProbes));
+			neighborIndexes.add(ivfIndex.withProbes(numProbes));
+			if (numProbes == ivfIndex.getNumCells()) {
+				break;
 			}
 		}
 		
-		for (int i = 0; i < numFeatures; i++) {
-			dataAverage[i] /= dataSize;
+		//all the searches are warmed up and timed together, so the row timed first does not pay for the JIT
+		BatchClassifier[] classifiers = new BatchClassifier[settings.size()];
+		for (int i = 0; i < classifiers.length; i++) {
+			classifiers[i] = new BatchClassifier(neighborIndexes.get(i), trainingClassification, K_VALUE, pool);
+		}
+		double[] queriesPerSecond = BatchClassifier.measureQueriesPerSecond(classifiers, projectedTestData, testClassification, WARM_UP_MILLIS * 1000000L, NUM_TIMING_ROUNDS, ROUND_MILLIS * 1000000L);
+		for (int i = 0; i < classifiers.length; i++) {
+			printApproximateSearchResult(settings.get(i), neighborIndexes.get(i), classifiers[i], queriesPerSecond[i], exactIndex, projectedTestData, testClassification, out);
 		}
+		out.println();
 	}
 	
-	private static ArrayList<double[]> arrayDeepCopy(ArrayList<double[]> original, int size) {
-		ArrayList<double[]> copy = new ArrayList<>(size);
+	private static void printApproximateSearchResult(String setting, NeighborIndex neighborIndex, BatchClassifier classifier, double queriesPerSecond, NeighborIndex exactIndex, FeatureMatrix testData, ClassLabels testClassification, PrintStream out) {
+		int numTestData = testData.getNumRows();
+		BatchClassifier.Result result = classifier.classify(testData, testClassification);
 		
-        for (double[] src : original) {
-        	double[] dest = new double[src.length];
-        	System.arraycopy( src, 0, dest, 0, src.length );
-        	
-        	copy.add(dest);
-        }
-        
-        return copy;
+		//recall is the fraction of the exact K_VALUE nearest neighbors that the search found
+		TopKSelector exact = new TopKSelector(K_VALUE);
+		TopKSelector approximate = new TopKSelector(K_VALUE);
+		int numFound = 0;
+		int numNeighbors = 0;
+		for (int i = 0; i < numTestData; i++) {
+			exactIndex.search(testData.getData(), testData.getRowOffset(i), exact);
+			neighborIndex.search(testData.getData(), testData.getRowOffset(i), approximate);
+			for (int j = 0; j < exact.size(); j++) {
+				for (int l = 0; l < approximate.size(); l++) {
+					if (exact.getIndex(j) == approximate.getIndex(l)) {
+						numFound++;
+						break;
+					}
+				}
+			}
+			numNeighbors += exact.size();
+		}
+		
+		double acc = ((double) result.count) / numTestData;
+		double recall = ((double) numFound) / numNeighbors;
+		out.println(setting + "\t" + result.count + "/" + numTestData + " = " + String.format("%.4f", acc) + "\t" + String.format("%.4f", recall) + "\t" + String.format("%.0f", queriesPerSecond));
 	}
 	
-	private static void arrayRemoveFeature(ArrayList<double[]> list, int size, int indexToRemove) {
-        for (int i = 0; i < size; i++) {
-        	double[] src = list.remove(i);
-            
-        	double[] dest = new double[src.length-1];
-        	System.arraycopy( src, 0, dest, 0, indexToRemove );
-        	System.arraycopy( src, indexToRemove+1, dest, indexToRemove, src.length - 1 - indexToRemove );
-        	
-        	list.add(i, dest);
-        }
+	//Choose between brute force and a KD-tree for the top-k search based on the dimensionality of the training data.
+	private static NeighborIndex buildNeighborIndex(final FeatureMatrix trainingData) {
+		if (!USE_TOP_K_SEARCH) {
+			//sort the whole training set by distance and keep the first K_VALUE
+			return new NeighborIndex() {
+				@Override
+				public void search(double[] testData, int testOffset, TopKSelector selector) {
+					ArrayList<DistObj> distanceObjects = Utilities.performKNN(trainingData, testData, testOffset);
+					
+					selector.clear();
+					for (int i = 0; i < selector.getK() && i < distanceObjects.size(); i++) {
+						selector.offer(distanceObjects.get(i).index, distanceObjects.get(i).distance);
+					}
+					selector.sort();
+				}
+			};
+		}
+		if (trainingData.getNumRows() > 0 && trainingData.getNumColumns() <= KD_TREE_MAX_DIMENSIONS) {
+			return new KdTree(trainingData);
+		}
+		return new BruteForceIndex(trainingData, USE_FLOAT_STORAGE);
 	}
 	
-	//Return the results of KNN (predicted classification) using k. Print out the percentage of training data that the test data matched up with
-	private static String getPredictedClassification(ArrayList<DistObj> distanceObjects, ArrayList<String> trainingClassification, int k) {
-		
-		HashMap<String,Integer> numOccurances = new HashMap<>();
-		for (int i = 0; i < k; i++) {
-			int index = distanceObjects.get(i).index;
-			String classification = trainingClassification.get(index);
-			
-			Integer count = numOccurances.get(classification);
-			numOccurances.put(classification, count==null?1:count+1);
+	//Print the results of KNN (predicted classification) for each test point in order, with the number of the k nearest neighbors that voted for it
+	private static void printPredictedClassifications(BatchClassifier.Result result, ClassDictionary classDictionary, int k, PrintStream out) {
+		if (LOG_LEVEL < LOG_DEBUG) {
+			return;
 		}
-		
-		String classification = "";
-		int max = 0;
-		
-		for (String key : numOccurances.keySet()) {
-			int val = numOccurances.get(key);
-			
-			if (val > max) {
-    			max = val;
-    			classification = key;
-    		}
+		for (int i = 0; i < result.predictedClassification.length; i++) {
+			int id = result.predictedClassification[i];
+			String classification = id < 0 ? "" : classDictionary.getName(id);
+			out.println(classification + ":\t\t" + result.votes[i] + "/" + k);
 		}
-		
-		System.out.println(classification + ":\t\t" + max + "/" + k);
-		
-		return classification;
-		
 	}
 	
-    private static ArrayList<String> getColumnHeaders(String line) {
+    static ArrayList<String> getColumnHeaders(String line) {
     	ArrayList<String> columnHeaders = new ArrayList<>();
     	
     	String dataCompsStr[] = line.substring(line.indexOf(",") + 1).split(",");
@@ -265,42 +453,20 @@ public class PcaKnn {
     	return columnHeaders;
     }
 	
-	private static String readFeatureFile(String featureFilePath, ArrayList<double[]> featureData, ArrayList<String> featureClassification) {
-		String columnHeaders = "";
-		
+	//Reads a feature CSV file, or a binary feature file written by FeatureFileConverter. Returns the column headers.
+	static String readFeatureFile(String featureFilePath, FeatureMatrix featureData, ClassLabels featureClassification) throws IOException {
+		Metrics.Stopwatch stopwatch = Metrics.start("load");
 		try {
-
-	        BufferedReader bufferedReader = new BufferedReader(new FileReader(featureFilePath));
-	        
-	        columnHeaders = bufferedReader.readLine();
-
-	        String line = bufferedReader.readLine();
-	        int dataSize = line.length() - line.replace(",", "").length();
-	
-	        while (line != null) {
-	        	String classification = line.substring(0, line.indexOf(","));
-	            String dataCompsStr[] = line.substring(line.indexOf(",") + 1).split(",");
-	
-	            double dataComps[] = new double[dataSize];
-	
-	            for (int i = 0; i < dataSize; i++) {
-	                dataComps[i] = Double.parseDouble(dataCompsStr[i]);
-	            }
-	
-	            featureData.add(dataComps);
-	            featureClassification.add(classification);
-	            line = bufferedReader.readLine();
-	        }
-	        bufferedReader.close();
-	        
-        } catch(IOException e) {
-        	System.err.println("Cannot read feature file.");
+			if (BinaryFeatureFile.isBinaryFeatureFile(featureFilePath)) {
+				return BinaryFeatureFile.read(featureFilePath, featureData, featureClassification);
+			}
+			return FeatureFileReader.read(featureFilePath, featureData, featureClassification);
+        } finally {
+        	stopwatch.stop();
         }
-		
-		return columnHeaders;
 	}
 	
-	private static void readFeatureListFile(String featureListPath, ArrayList<String> featureList) {
+	static void readFeatureListFile(String featureListPath, ArrayList<String> featureList) {
 		try {
 
 	        BufferedReader bufferedReader = new BufferedReader(new FileReader(featureListPath));
@@ -319,21 +485,13 @@ public class PcaKnn {
         }
 	}
 	
-	private static void writeResultsFile(String filePath, ArrayList<String> resultsFeature, ArrayList<String> resultsComponent) {
-		
-		try {
-			BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(filePath, true));
-			
-			bufferedWriter.write("Num Removed,Features,Components");
-			bufferedWriter.newLine();
-			for (int i = 0; i < resultsFeature.size(); i++) {
-				bufferedWriter.write(i + "," + resultsFeature.get(i) + "," + resultsComponent.get(i));
-				bufferedWriter.newLine();
-			}
-			bufferedWriter.close();
-		} catch (IOException e) {
-			System.err.println("Cannot write results file. " + e.getMessage());
+	//Replaces the file at filePath with the results of both tests, one row per number of features or components removed.
+	private static void writeResultsFile(String filePath, ArrayList<String> resultsFeature, ArrayList<String> resultsComponent) throws IOException {
+		StringBuilder contents = new StringBuilder("Num Removed,Features,Components\n");
+		for (int i = 0; i < resultsFeature.size(); i++) {
+			contents.append(i + "," + resultsFeature.get(i) + "," + resultsComponent.get(i) + "\n");
 		}
+		Utilities.writeFileAtomically(filePath, contents.toString());
 	}
 
 }
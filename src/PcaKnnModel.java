@@ -0,0 +1,385 @@
+/*
+ * A trained PCA + KNN classifier that can be saved and loaded without retraining.
+ * The model holds the feature order, the training mean, the eigenpairs sorted by descending eigenvalue (all of them, or
+ * only the components used when the model was trained with RandomizedPca), the number of components used, the training data centered and projected onto those components, and its classifications.
+ * A new window is classified by centering it with the training mean, projecting it and voting among its k nearest
+ * projected training points.
+ *
+ * Saved models are little-endian binary files that are memory-mapped when loaded:
+ *
+ *   "PKNM"                                 magic
+ *   int version                            VERSION
+ *   int numFeatures, int numComponents, int numEigenpairs, int k, int numTrainingData
+ *   int numClasses
+ *   int treeSize                           numTrainingData if the KD-tree is saved, otherwise 0
+ *   string[numFeatures] feature names
+ *   string[numClasses] class names
+ *   int[numTrainingData] class ids
+ *   padding to a multiple of 8 bytes
+ *   double[numFeatures] mean
+ *   double[numEigenpairs] eigenvalues      descending
+ *   double[numEigenpairs x numFeatures]    eigenvectors, one per row, in the order of the eigenvalues
+ *   double[numTrainingData x numComponents] projected training data, row-major
+ *   int[treeSize] KD-tree point indices
+ *   int[treeSize] KD-tree split dimensions
+ *
+ * Strings are an int byte count followed by UTF-8 bytes. Version 1 files have no numEigenpairs and hold all numFeatures.
+ * Versions 1 and 2 have no treeSize or KD-tree, so the tree is built again when they are loaded.
+ *
+ * @author Scott Weaver
+ */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import Jama.Matrix;
+
+public class PcaKnnModel {
+	private static final byte[] MAGIC = {'P', 'K', 'N', 'M'};
+	private static final int VERSION = 3;
+	//models with at least this many features only compute the components they use, with RandomizedPca
+	private static int TRUNCATED_PCA_MIN_FEATURES = 200;
+	//largest region of a model file mapped at once when loading it
+	private static int MAX_MAPPED_BYTES = 1 << 30;
+
+	private final ArrayList<String> featureNames;
+	private final double[] mean;
+	private final PcaModel pcaModel;
+	private final int numComponents;
+	private final int k;
+	private final FeatureMatrix projectedTrainingData;
+	private final ClassLabels trainingClassification;
+
+	//numFeatures x numComponents
+	private final double[][] eigenVectorArray;
+	private final NeighborIndex neighborIndex;
+
+	//neighborIndex is an index over projectedTrainingData, or null to build one.
+	private PcaKnnModel(ArrayList<String> featureNames, double[] mean, PcaModel pcaModel, int numComponents, int k, FeatureMatrix projectedTrainingData, ClassLabels trainingClassification, NeighborIndex neighborIndex) {
+		this.featureNames = featureNames;
+		this.mean = mean;
+		this.pcaModel = pcaModel;
+		this.numComponents = numComponents;
+		this.k = k;
+		this.projectedTrainingData = projectedTrainingData;
+		this.trainingClassification = trainingClassification;
+
+		this.eigenVectorArray = pcaModel.getEigenvectorMatrix(numComponents).getArray();
+		if (neighborIndex != null) {
+			this.neighborIndex = neighborIndex;
+		} else if (numComponents <= PcaKnn.KD_TREE_MAX_DIMENSIONS && projectedTrainingData.getNumRows() > 0) {
+			this.neighborIndex = new KdTree(projectedTrainingData);
+		} else {
+			this.neighborIndex = new BruteForceIndex(projectedTrainingData);
+		}
+	}
+
+	//Input:	trainingData and trainingClassification as read from a feature file, featureNames its columns in order.
+	//Output:	Returns a model that classifies with k nearest neighbors on the top numComponents principal components.
+	public static PcaKnnModel train(FeatureMatrix trainingData, ClassLabels trainingClassification, ArrayList<String> featureNames, int numComponents, int k, ForkJoinPool pool) {
+		int numFeatures = trainingData.getNumColumns();
+		if (featureNames.size() != numFeatures) {
+			throw new IllegalArgumentException(featureNames.size() + " feature names for " + numFeatures + " features.");
+		}
+
+		PcaModel pcaModel;
+		double[] mean;
+		if (numFeatures >= TRUNCATED_PCA_MIN_FEATURES && numComponents < Math.min(numFeatures, trainingData.getNumRows())) {
+			//the covariance matrix and its full decomposition would dominate the training time
+			mean = RandomizedPca.getMean(trainingData);
+			pcaModel = RandomizedPca.compute(trainingData, mean, numComponents, 0, pool);
+		} else {
+			CovarianceAccumulator accumulator = Utilities.getCovarianceAccumulator(trainingData, numFeatures, pool);
+			pcaModel = new PcaModel(accumulator.getCovarianceMatrix());
+			mean = accumulator.getMean();
+		}
+
+		FeatureMatrix projectedTrainingData = new ProjectionEngine(mean, pcaModel.getEigenvectorMatrix(numComponents)).project(trainingData, pool);
+
+		return new PcaKnnModel(new ArrayList<>(featureNames), mean, pcaModel, numComponents, k, projectedTrainingData, trainingClassification, null);
+	}
+
+	//Centers the numFeatures values starting at data[offset] with mean and writes their projection onto the columns of eigenVectorArray to out[outOffset].
+	//A single row; ProjectionEngine projects whole matrices, with the same result.
+	static void project(double[] data, int offset, double[] mean, double[][] eigenVectorArray, double[] out, int outOffset) {
+		int numFeatures = mean.length;
+		int numComponents = eigenVectorArray[0].length;
+
+		for (int j = 0; j < numComponents; j++) {
+			double sum = 0.0;
+			for (int i = 0; i < numFeatures; i++) {
+				sum += (data[offset + i] - mean[i]) * eigenVectorArray[i][j];
+			}
+			out[outOffset + j] = sum;
+		}
+	}
+
+	public ArrayList<String> getFeatureNames() {
+		return featureNames;
+	}
+
+	public int getNumFeatures() {
+		return mean.length;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public double[] getMean() {
+		return mean;
+	}
+
+	public PcaModel getPcaModel() {
+		return pcaModel;
+	}
+
+	public FeatureMatrix getProjectedTrainingData() {
+		return projectedTrainingData;
+	}
+
+	public ClassLabels getTrainingClassification() {
+		return trainingClassification;
+	}
+
+	//Projects a single window of numFeatures values, in the order of getFeatureNames(), onto the model's components.
+	public double[] project(double[] window) {
+		if (window.length != mean.length) {
+			throw new IllegalArgumentException("Window has " + window.length + " features, expected " + mean.length + ".");
+		}
+		double[] projected = new double[numComponents];
+		project(window, 0, mean, eigenVectorArray, projected, 0);
+		return projected;
+	}
+
+	//Classifies a single window of numFeatures values, in the order of getFeatureNames(). Safe to call from several threads.
+	public String classify(double[] window) {
+		return classify(window, new TopKSelector(k), new int[trainingClassification.getDictionary().size()]);
+	}
+
+	//As classify(window), reusing the caller's scratch buffers. numOccurances needs one entry per training class.
+	public String classify(double[] window, TopKSelector selector, int[] numOccurances) {
+		neighborIndex.search(project(window), 0, selector);
+
+		BatchClassifier.Result result = new BatchClassifier.Result(1);
+		BatchClassifier.vote(selector, trainingClassification, numOccurances, result, 0);
+
+		int id = result.predictedClassification[0];
+		return id < 0 ? "" : trainingClassification.getDictionary().getName(id);
+	}
+
+	public void save(String modelFilePath) throws IOException {
+		int numFeatures = mean.length;
+		int numTrainingData = projectedTrainingData.getNumRows();
+		ClassDictionary dictionary = trainingClassification.getDictionary();
+
+		ArrayList<byte[]> strings = new ArrayList<>();
+		for (String featureName : featureNames) {
+			strings.add(featureName.getBytes(StandardCharsets.UTF_8));
+		}
+		for (int id = 0; id < dictionary.size(); id++) {
+			strings.add(dictionary.getName(id).getBytes(StandardCharsets.UTF_8));
+		}
+
+		int numEigenpairs = pcaModel.getNumComponents();
+		KdTree kdTree = neighborIndex instanceof KdTree ? (KdTree) neighborIndex : null;
+		int treeSize = kdTree != null ? numTrainingData : 0;
+		int headerSize = MAGIC.length + 4 * 8 + 4 * numTrainingData;
+		for (byte[] string : strings) {
+			headerSize += 4 + string.length;
+		}
+		int dataStart = (headerSize + 7) & ~7;
+
+		try (RandomAccessFile file = new RandomAccessFile(modelFilePath, "rw"); FileChannel channel = file.getChannel()) {
+			channel.truncate(0);
+
+			ByteBuffer header = ByteBuffer.allocate(dataStart).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(numFeatures);
+			header.putInt(numComponents);
+			header.putInt(numEigenpairs);
+			header.putInt(k);
+			header.putInt(numTrainingData);
+			header.putInt(dictionary.size());
+			header.putInt(treeSize);
+			for (byte[] string : strings) {
+				header.putInt(string.length);
+				header.put(string);
+			}
+			for (int i = 0; i < numTrainingData; i++) {
+				header.putInt(trainingClassification.getId(i));
+			}
+			header.position(0);
+			BinaryFeatureFile.writeFully(channel, header);
+
+			ByteBuffer values = ByteBuffer.allocate(8 * (numFeatures + numEigenpairs + numEigenpairs * numFeatures)).order(ByteOrder.LITTLE_ENDIAN);
+			for (double value : mean) {
+				values.putDouble(value);
+			}
+			for (EigenObject eigenObject : pcaModel.getEigenObjects()) {
+				values.putDouble(eigenObject.getEigenValue());
+			}
+			for (EigenObject eigenObject : pcaModel.getEigenObjects()) {
+				for (double value : eigenObject.getEigenVector()) {
+					values.putDouble(value);
+				}
+			}
+			values.flip();
+			BinaryFeatureFile.writeFully(channel, values);
+
+			double[] data = projectedTrainingData.getData();
+			int numValues = numTrainingData * numComponents;
+			ByteBuffer chunk = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < numValues; i++) {
+				if (!chunk.hasRemaining()) {
+					chunk.flip();
+					BinaryFeatureFile.writeFully(channel, chunk);
+					chunk.clear();
+				}
+				chunk.putDouble(data[i]);
+			}
+			if (kdTree != null) {
+				putInts(channel, chunk, kdTree.getPointIndex());
+				putInts(channel, chunk, kdTree.getSplitDimension());
+			}
+			chunk.flip();
+			BinaryFeatureFile.writeFully(channel, chunk);
+		}
+	}
+
+	//Appends values to chunk, writing chunk to channel whenever it fills up.
+	private static void putInts(FileChannel channel, ByteBuffer chunk, int[] values) throws IOException {
+		for (int value : values) {
+			if (chunk.remaining() < 4) {
+				chunk.flip();
+				BinaryFeatureFile.writeFully(channel, chunk);
+				chunk.clear();
+			}
+			chunk.putInt(value);
+		}
+	}
+
+	//Loads a model saved by save. The file is memory-mapped and its class ids and values are copied into the heap arrays
+	//that the model searches. The KD-tree saved with a version 3 model is restored as it was; older models build it again.
+	public static PcaKnnModel load(String modelFilePath) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(modelFilePath, "r"); FileChannel channel = file.getChannel()) {
+			//save sizes everything before the mean with an int, so it fits in one mapping; the values are mapped in regions
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (buffer.get() != MAGIC[i]) {
+					throw new IOException(modelFilePath + ": not a model file");
+				}
+			}
+			int version = buffer.getInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException(modelFilePath + ": unsupported model file version " + version);
+			}
+			int numFeatures = buffer.getInt();
+			int numComponents = buffer.getInt();
+			int numEigenpairs = version == 1 ? numFeatures : buffer.getInt();
+			int k = buffer.getInt();
+			int numTrainingData = buffer.getInt();
+			int numClasses = buffer.getInt();
+			int treeSize = version < 3 ? 0 : buffer.getInt();
+
+			ArrayList<String> featureNames = new ArrayList<>(numFeatures);
+			for (int i = 0; i < numFeatures; i++) {
+				featureNames.add(BinaryFeatureFile.getString(modelFilePath, buffer));
+			}
+			ClassDictionary dictionary = new ClassDictionary();
+			for (int id = 0; id < numClasses; id++) {
+				dictionary.getId(BinaryFeatureFile.getString(modelFilePath, buffer));
+			}
+			ClassLabels trainingClassification = new ClassLabels(dictionary);
+			for (int i = 0; i < numTrainingData; i++) {
+				int id = buffer.getInt();
+				if (id < 0 || id >= numClasses) {
+					throw new IOException(modelFilePath + ": corrupt model file, class id " + id + " of " + numClasses + " classes");
+				}
+				trainingClassification.addId(id);
+			}
+
+			long position = (buffer.position() + 7) & ~7;
+
+			double[] mean = new double[numFeatures];
+			position = readValues(modelFilePath, channel, position, mean);
+			double[] eigenValues = new double[numEigenpairs];
+			position = readValues(modelFilePath, channel, position, eigenValues);
+			double[] eigenVectors = new double[numEigenpairs * numFeatures];
+			position = readValues(modelFilePath, channel, position, eigenVectors);
+			List<EigenObject> eigenObjList = new ArrayList<>(numEigenpairs);
+			for (int j = 0; j < numEigenpairs; j++) {
+				double[] eigenVector = new double[numFeatures];
+				System.arraycopy(eigenVectors, j * numFeatures, eigenVector, 0, numFeatures);
+				eigenObjList.add(new EigenObject(eigenValues[j], eigenVector));
+			}
+
+			FeatureMatrix projectedTrainingData = new FeatureMatrix(numTrainingData, numComponents);
+			position = readValues(modelFilePath, channel, position, projectedTrainingData.getData());
+
+			NeighborIndex neighborIndex = null;
+			if (treeSize > 0) {
+				int[] pointIndex = new int[treeSize];
+				position = readValues(modelFilePath, channel, position, pointIndex);
+				int[] splitDimension = new int[treeSize];
+				position = readValues(modelFilePath, channel, position, splitDimension);
+				neighborIndex = new KdTree(projectedTrainingData, pointIndex, splitDimension);
+			}
+
+			return new PcaKnnModel(featureNames, mean, new PcaModel(eigenObjList), numComponents, k, projectedTrainingData, trainingClassification, neighborIndex);
+		} catch (RuntimeException e) {
+			//a BufferUnderflowException or negative size from a truncated or corrupt file
+			throw new IOException(modelFilePath + ": corrupt model file", e);
+		}
+	}
+
+	//Copies the values.length doubles at position of channel into values and returns the position after them.
+	private static long readValues(String modelFilePath, FileChannel channel, long position, double[] values) throws IOException {
+		int maxCount = MAX_MAPPED_BYTES / 8;
+		for (int offset = 0; offset < values.length; offset += maxCount) {
+			int count = Math.min(maxCount, values.length - offset);
+			map(modelFilePath, channel, position, 8L * count).asDoubleBuffer().get(values, offset, count);
+			position += 8L * count;
+		}
+		return position;
+	}
+
+	//Copies the values.length ints at position of channel into values and returns the position after them.
+	private static long readValues(String modelFilePath, FileChannel channel, long position, int[] values) throws IOException {
+		int maxCount = MAX_MAPPED_BYTES / 4;
+		for (int offset = 0; offset < values.length; offset += maxCount) {
+			int count = Math.min(maxCount, values.length - offset);
+			map(modelFilePath, channel, position, 4L * count).asIntBuffer().get(values, offset, count);
+			position += 4L * count;
+		}
+		return position;
+	}
+
+	private static MappedByteBuffer map(String modelFilePath, FileChannel channel, long position, long size) throws IOException {
+		if (position + size > channel.size()) {
+			throw new IOException(modelFilePath + ": model file is truncated");
+		}
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	//The eigenvectors of the components used, as a numFeatures x numComponents matrix.
+	public Matrix getEigenvectorMatrix() {
+		return pcaModel.getEigenvectorMatrix(numComponents);
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Principal components of a covariance matrix, decomposed once and reused for any number of components.
+ * The eigenpairs are kept sorted by descending eigenvalue, so the top m components are always the first m columns
+ * of the full projection. Data projected onto all components can therefore be reduced to m components by
+ * truncating each row (see Utilities.truncateComponents) instead of projecting the original data again.
+ * A model may hold only the top components (see RandomizedPca), in which case no more than those can be used.
+ *
+ * @author Scott Weaver
+ */
+import java.util.List;
+
+import Jama.Matrix;
+
+public class PcaModel {
+	private final int numFeatures;
+	private final int numComponents;
+	private final List<EigenObject> eigenObjList;
+	//numFeatures x numComponents, column i is the eigenvector with the i-th largest eigenvalue
+	private final Matrix eigenVectorMatrix;
+
+	public PcaModel(double[][] covarianceMatrix) {
+		this(Utilities.performEigenOperations(covarianceMatrix, covarianceMatrix.length));
+	}
+
+	//Creates a model from eigenpairs that are already sorted by descending eigenvalue, such as those of a saved model.
+	//There may be fewer eigenpairs than features.
+	public PcaModel(List<EigenObject> eigenObjList) {
+		this.numFeatures = eigenObjList.get(0).getEigenVector().length;
+		this.numComponents = eigenObjList.size();
+		this.eigenObjList = eigenObjList;
+
+		double[][] eigenVector2dArray = new double[numFeatures][numComponents];
+		for (int j = 0; j < numComponents; j++) {
+			double[] eigenVector = eigenObjList.get(j).getEigenVector();
+			for (int i = 0; i < numFeatures; i++) {
+				eigenVector2dArray[i][j] = eigenVector[i];
+			}
+		}
+		eigenVectorMatrix = new Matrix(eigenVector2dArray);
+	}
+
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	//Number of eigenpairs held, numFeatures unless the model was truncated.
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	//Eigenpairs in descending order of eigenvalue.
+	public List<EigenObject> getEigenObjects() {
+		return eigenObjList;
+	}
+
+	public double getEigenValue(int component) {
+		return eigenObjList.get(component).getEigenValue();
+	}
+
+	//Returns the numFeatures x numComponents projection onto the top numComponents principal components.
+	//The full matrix is shared, not copied, so callers must not modify it.
+	public Matrix getEigenvectorMatrix(int numComponents) {
+		if (numComponents < 1 || numComponents > this.numComponents) {
+			throw new IllegalArgumentException("Number of components must be between 1 and " + this.numComponents + ": " + numComponents);
+		}
+		if (numComponents == this.numComponents) {
+			return eigenVectorMatrix;
+		}
+		return eigenVectorMatrix.getMatrix(0, numFeatures - 1, 0, numComponents - 1);
+	}
+}
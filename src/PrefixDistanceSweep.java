@@ -0,0 +1,170 @@
+/*
+ * Runs KNN for every prefix of a column order in a single pass over the training data.
+ * Step m uses only the first m columns of columnOrder. The squared Euclidean distance is a sum over columns, so while
+ * the columns of a training point are summed in that order, the running total after m columns is exactly the
+ * squared distance of step m; each partial sum is offered to that step's selector. Dropping the last column of a step
+ * is therefore the same as subtracting its squared difference, but without the cancellation error of a subtraction.
+ * This gives the result of every step for about the cost of one KNN run over all columns, instead of one run per step.
+ *
+ * Neighbors are ranked by squared distance; ties are broken on the training index as in TopKSelector.
+ * Test points are split across the pool like BatchClassifier, so the results do not depend on the number of threads.
+ * The search keeps the k nearest neighbors of each step, which also serves any smaller k: the first k' of them are the
+ * k' nearest, so several values of k are voted on from a single search.
+ *
+ * @author Scott Weaver
+ */
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class PrefixDistanceSweep {
+	//test points per task
+	private static int BATCH_SIZE = 16;
+
+	private final FeatureMatrix trainingData;
+	private final ClassLabels trainingClassification;
+	private final int[] columnOrder;
+	private final int k;
+	private final ForkJoinPool pool;
+
+	public PrefixDistanceSweep(FeatureMatrix trainingData, ClassLabels trainingClassification, int[] columnOrder, int k, ForkJoinPool pool) {
+		this.trainingData = trainingData;
+		this.trainingClassification = trainingClassification;
+		this.columnOrder = columnOrder.clone();
+		this.k = k;
+		this.pool = pool;
+	}
+
+	//Returns one result per step; element m - 1 holds the result using the first m columns of the column order.
+	public BatchClassifier.Result[] classify(FeatureMatrix testData, ClassLabels testClassification) {
+		return classify(testData, testClassification, new int[] {k})[0];
+	}
+
+	//Classifies with every k of kValues, which may not exceed the k of the sweep, from the same search.
+	//Returns one array of results per k, each holding one result per step as above.
+	public BatchClassifier.Result[][] classify(FeatureMatrix testData, ClassLabels testClassification, int[] kValues) {
+		int numTestData = testData.getNumRows();
+		int numSteps = columnOrder.length;
+		for (int kValue : kValues) {
+			if (kValue < 1 || kValue > k) {
+				throw new IllegalArgumentException("k must be between 1 and " + k + ": " + kValue);
+			}
+		}
+
+		BatchClassifier.Result[][] results = new BatchClassifier.Result[kValues.length][numSteps];
+		for (int q = 0; q < kValues.length; q++) {
+			for (int m = 0; m < numSteps; m++) {
+				results[q][m] = new BatchClassifier.Result(numTestData);
+			}
+		}
+
+		int[] counts = pool.invoke(new SweepTask(testData, testClassification, kValues.clone(), results, 0, numTestData));
+		for (int q = 0; q < kValues.length; q++) {
+			for (int m = 0; m < numSteps; m++) {
+				results[q][m].count = counts[q * numSteps + m];
+			}
+		}
+
+		return results;
+	}
+
+	private class SweepTask extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final FeatureMatrix testData;
+		private final ClassLabels testClassification;
+		private final int[] kValues;
+		//results[q][m] is the result of step m with k = kValues[q]
+		private final BatchClassifier.Result[][] results;
+		private final int lo;
+		private final int hi;
+
+		SweepTask(FeatureMatrix testData, ClassLabels testClassification, int[] kValues, BatchClassifier.Result[][] results, int lo, int hi) {
+			this.testData = testData;
+			this.testClassification = testClassification;
+			this.kValues = kValues;
+			this.results = results;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected int[] compute() {
+			int numSteps = columnOrder.length;
+
+			if (hi - lo > BATCH_SIZE) {
+				int mid = (lo + hi) >>> 1;
+				SweepTask left = new SweepTask(testData, testClassification, kValues, results, lo, mid);
+				SweepTask right = new SweepTask(testData, testClassification, kValues, results, mid, hi);
+				left.fork();
+				int[] counts = right.compute();
+				int[] leftCounts = left.join();
+				for (int c = 0; c < counts.length; c++) {
+					counts[c] += leftCounts[c];
+				}
+				return counts;
+			}
+
+			TopKSelector[] selectors = new TopKSelector[numSteps];
+			for (int m = 0; m < numSteps; m++) {
+				selectors[m] = new TopKSelector(k);
+			}
+			int[] numOccurances = new int[trainingClassification.getDictionary().size()];
+			int[] counts = new int[kValues.length * numSteps];
+
+			int numTrainingData = trainingData.getNumRows();
+			double[] data = trainingData.getData();
+			double[] test = testData.getData();
+
+			//timed locally and added to the metrics once per task, as in BatchClassifier
+			boolean timed = Metrics.isEnabled();
+			LatencyHistogram latencies = timed ? new LatencyHistogram() : null;
+			long searchNanos = 0;
+			long voteNanos = 0;
+
+			for (int i = lo; i < hi; i++) {
+				long start = timed ? System.nanoTime() : 0;
+				int testOffset = testData.getRowOffset(i);
+				for (int m = 0; m < numSteps; m++) {
+					selectors[m].clear();
+				}
+
+				for (int r = 0; r < numTrainingData; r++) {
+					int offset = trainingData.getRowOffset(r);
+					double sum = 0.0;
+					for (int m = 0; m < numSteps; m++) {
+						int column = columnOrder[m];
+						double diff = test[testOffset + column] - data[offset + column];
+						sum += diff * diff;
+						selectors[m].offer(r, sum);
+					}
+				}
+
+				long searched = timed ? System.nanoTime() : 0;
+				for (int m = 0; m < numSteps; m++) {
+					selectors[m].sort();
+					for (int q = 0; q < kValues.length; q++) {
+						BatchClassifier.Result result = results[q][m];
+						BatchClassifier.vote(selectors[m], kValues[q], trainingClassification, numOccurances, result, i);
+						if (testClassification.getId(i) == result.predictedClassification[i]) {
+							counts[q * numSteps + m]++;
+						}
+					}
+				}
+				if (timed) {
+					long voted = System.nanoTime();
+					searchNanos += searched - start;
+					voteNanos += voted - searched;
+					latencies.record(voted - start);
+				}
+			}
+			if (timed) {
+				Metrics.addTime("sweepSearch", hi - lo, searchNanos);
+				Metrics.addTime("sweepVote", hi - lo, voteNanos);
+				Metrics.record("sweepQueryLatency", latencies);
+				Metrics.increment("sweepQueries", hi - lo);
+			}
+
+			return counts;
+		}
+	}
+}
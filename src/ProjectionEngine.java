@@ -0,0 +1,151 @@
+/*
+ * Projects feature data onto principal components: each row is centered on the training mean and multiplied by the
+ * components in one pass, writing straight into a caller's FeatureMatrix. Rows are split into blocks of BLOCK_ROWS
+ * that are projected in parallel with fork/join; every row is computed the same way on any thread, so the result does
+ * not depend on the number of threads.
+ *
+ * The components are copied once, transposed, so component j is a contiguous row and every dot product reads both of
+ * its operands sequentially. A row is centered once into a scratch buffer and then shared by four components at a time.
+ * A row is projected with the same operations in the same order as PcaKnnModel.project, so both give identical values.
+ *
+ * @author Scott Weaver
+ */
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import Jama.Matrix;
+
+public class ProjectionEngine {
+	//rows projected by a single task
+	private static int BLOCK_ROWS = 1024;
+
+	private final int numFeatures;
+	private final int numComponents;
+	private final double[] mean;
+	//numComponents x numFeatures, row-major: row j is component j
+	private final double[] components;
+
+	//Projects onto the first numComponents columns of eigenVectorArray, numFeatures x (at least) numComponents,
+	//after subtracting mean. mean may be null for data that is already centered.
+	public ProjectionEngine(double[] mean, double[][] eigenVectorArray, int numComponents) {
+		this.numFeatures = eigenVectorArray.length;
+		this.numComponents = numComponents;
+		this.mean = mean != null ? mean.clone() : new double[numFeatures];
+		if (this.mean.length != numFeatures) {
+			throw new IllegalArgumentException("Mean of " + this.mean.length + " features for components of " + numFeatures + " features.");
+		}
+
+		components = new double[numComponents * numFeatures];
+		for (int i = 0; i < numFeatures; i++) {
+			for (int j = 0; j < numComponents; j++) {
+				components[j * numFeatures + i] = eigenVectorArray[i][j];
+			}
+		}
+	}
+
+	//Projects onto every column of eigenVectors.
+	public ProjectionEngine(double[] mean, Matrix eigenVectors) {
+		this(mean, eigenVectors.getArray(), eigenVectors.getColumnDimension());
+	}
+
+	public int getNumFeatures() {
+		return numFeatures;
+	}
+
+	public int getNumComponents() {
+		return numComponents;
+	}
+
+	//Returns the projection of every row of data.
+	public FeatureMatrix project(FeatureMatrix data, ForkJoinPool pool) {
+		FeatureMatrix projected = new FeatureMatrix(data.getNumRows(), numComponents);
+		project(data, projected, pool);
+		return projected;
+	}
+
+	//Writes the projection of row r of data to row r of out, which must have numComponents columns and at least as
+	//many rows as data.
+	public void project(FeatureMatrix data, FeatureMatrix out, ForkJoinPool pool) {
+		if (data.getNumRows() > 0 && data.getNumColumns() != numFeatures) {
+			throw new IllegalArgumentException("Data of " + data.getNumColumns() + " features for components of " + numFeatures + " features.");
+		}
+		if (out.getNumColumns() != numComponents || out.getNumRows() < data.getNumRows()) {
+			throw new IllegalArgumentException("Output of " + out.getNumRows() + " x " + out.getNumColumns() + " for a projection of " + data.getNumRows() + " x " + numComponents + ".");
+		}
+
+		Metrics.Stopwatch stopwatch = Metrics.start("projection");
+		pool.invoke(new ProjectTask(data, out, 0, data.getNumRows()));
+		stopwatch.stop();
+	}
+
+	//Projects rows lo to hi - 1 of data into out. centered is scratch space of numFeatures values.
+	private void project(FeatureMatrix data, FeatureMatrix out, int lo, int hi, double[] centered) {
+		double[] dataArray = data.getData();
+		double[] outArray = out.getData();
+
+		for (int r = lo; r < hi; r++) {
+			int offset = data.getRowOffset(r);
+			int outOffset = out.getRowOffset(r);
+			for (int i = 0; i < numFeatures; i++) {
+				centered[i] = dataArray[offset + i] - mean[i];
+			}
+
+			int j = 0;
+			for (; j + 4 <= numComponents; j += 4) {
+				int c0 = j * numFeatures;
+				int c1 = c0 + numFeatures;
+				int c2 = c1 + numFeatures;
+				int c3 = c2 + numFeatures;
+				double sum0 = 0.0;
+				double sum1 = 0.0;
+				double sum2 = 0.0;
+				double sum3 = 0.0;
+				for (int i = 0; i < numFeatures; i++) {
+					double value = centered[i];
+					sum0 += value * components[c0 + i];
+					sum1 += value * components[c1 + i];
+					sum2 += value * components[c2 + i];
+					sum3 += value * components[c3 + i];
+				}
+				outArray[outOffset + j] = sum0;
+				outArray[outOffset + j + 1] = sum1;
+				outArray[outOffset + j + 2] = sum2;
+				outArray[outOffset + j + 3] = sum3;
+			}
+			for (; j < numComponents; j++) {
+				int c = j * numFeatures;
+				double sum = 0.0;
+				for (int i = 0; i < numFeatures; i++) {
+					sum += centered[i] * components[c + i];
+				}
+				outArray[outOffset + j] = sum;
+			}
+		}
+	}
+
+	private class ProjectTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final FeatureMatrix data;
+		private final FeatureMatrix out;
+		private final int lo;
+		private final int hi;
+
+		ProjectTask(FeatureMatrix data, FeatureMatrix out, int lo, int hi) {
+			this.data = data;
+			this.out = out;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > BLOCK_ROWS) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new ProjectTask(data, out, lo, mid), new ProjectTask(data, out, mid, hi));
+				return;
+			}
+			project(data, out, lo, hi, new double[numFeatures]);
+		}
+	}
+}
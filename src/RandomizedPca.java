@@ -0,0 +1,262 @@
+/*
+ * Truncated PCA: the top numComponents principal components computed by randomized SVD of the centered data
+ * (Halko, Martinsson and Tropp), without forming the covariance matrix or decomposing it in full.
+ * With n rows, d features and l = numComponents + OVERSAMPLING, the data is multiplied by a random d x l matrix, the
+ * range of the product is sharpened by POWER_ITERATIONS rounds of multiplying by the data and its transpose, and the
+ * small d x l projection of the data onto that range is decomposed by a thin SVD. Each pass over the data costs
+ * O(n d l) and the decompositions O((n + d) l^2), against O(n d^2 + d^3) for the covariance and its full
+ * eigendecomposition, which is what makes thousands of features affordable. The data is centered on the fly, not copied.
+ *
+ * When l reaches d the random matrix spans every direction, so the result is exact up to rounding, as on the 14
+ * features in Data. Otherwise the error of each component shrinks with the gap between its eigenvalue and those past
+ * l. The eigenvalues are those of the sample covariance (divided by n - 1), as in CovarianceAccumulator.
+ *
+ * Usage: RandomizedPca [featureFile] [numComponents]
+ * Compares the truncated and exact decompositions of a feature file.
+ *
+ * @author Scott Weaver
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import Jama.Matrix;
+import Jama.SingularValueDecomposition;
+
+public class RandomizedPca {
+	//extra random directions beyond numComponents; they catch the part of the top components the others miss
+	private static int OVERSAMPLING = 10;
+	private static int POWER_ITERATIONS = 2;
+	//rows multiplied by a single task
+	private static int TASK_SIZE = 4096;
+	//largest relative eigenvalue error and 1 - |cosine| between eigenvectors that counts as a match in main
+	private static double TOLERANCE = 1e-4;
+
+	//Returns the column means of featureData.
+	public static double[] getMean(FeatureMatrix featureData) {
+		int numRows = featureData.getNumRows();
+		int numFeatures = featureData.getNumColumns();
+		double[] data = featureData.getData();
+
+		double[] mean = new double[numFeatures];
+		for (int r = 0; r < numRows; r++) {
+			int offset = featureData.getRowOffset(r);
+			for (int i = 0; i < numFeatures; i++) {
+				mean[i] += data[offset + i];
+			}
+		}
+		for (int i = 0; i < numFeatures; i++) {
+			mean[i] /= numRows;
+		}
+		return mean;
+	}
+
+	//Input:	featureData is the feature data and mean its column means (see getMean).
+	//Output:	Returns a model holding the top numComponents principal components of the data. The result only depends on seed, not on the pool.
+	public static PcaModel compute(FeatureMatrix featureData, double[] mean, int numComponents, long seed, ForkJoinPool pool) {
+		int numRows = featureData.getNumRows();
+		int numFeatures = featureData.getNumColumns();
+		if (numComponents < 1 || numComponents > Math.min(numFeatures, numRows)) {
+			throw new IllegalArgumentException("Number of components must be between 1 and " + Math.min(numFeatures, numRows) + ": " + numComponents);
+		}
+		int sampleSize = Math.min(numComponents + OVERSAMPLING, Math.min(numFeatures, numRows));
+		Metrics.Stopwatch stopwatch = Metrics.start("randomizedSvd");
+
+		Random random = new Random(seed);
+		double[][] omega = new double[numFeatures][sampleSize];
+		for (int i = 0; i < numFeatures; i++) {
+			for (int j = 0; j < sampleSize; j++) {
+				omega[i][j] = random.nextGaussian();
+			}
+		}
+
+		//Q is an orthonormal basis of the range of (centered data) x omega
+		Matrix q = orthonormalize(multiply(featureData, mean, omega, pool));
+		for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+			//re-orthonormalizing between the multiplications keeps the small singular values from being lost to rounding
+			Matrix z = orthonormalize(multiplyTransposed(featureData, mean, q.getArray(), pool));
+			q = orthonormalize(multiply(featureData, mean, z.getArray(), pool));
+		}
+
+		//the data is approximately Q B with B = Q' (centered data); the right singular vectors of B are the principal components
+		Matrix bTransposed = multiplyTransposed(featureData, mean, q.getArray(), pool);
+		SingularValueDecomposition svd = new SingularValueDecomposition(bTransposed);
+		double[] singularValues = svd.getSingularValues();
+		double[][] u = svd.getU().getArray();
+
+		List<EigenObject> eigenObjList = new ArrayList<>(numComponents);
+		for (int j = 0; j < numComponents; j++) {
+			double[] eigenVector = new double[numFeatures];
+			for (int i = 0; i < numFeatures; i++) {
+				eigenVector[i] = u[i][j];
+			}
+			eigenObjList.add(new EigenObject(singularValues[j] * singularValues[j] / (numRows - 1), eigenVector));
+		}
+		stopwatch.stop();
+		return new PcaModel(eigenObjList);
+	}
+
+	private static Matrix orthonormalize(Matrix matrix) {
+		return matrix.qr().getQ();
+	}
+
+	//Returns (featureData - mean) x right, numRows x right[0].length.
+	private static Matrix multiply(FeatureMatrix featureData, double[] mean, double[][] right, ForkJoinPool pool) {
+		double[][] product = new double[featureData.getNumRows()][right[0].length];
+		pool.invoke(new MultiplyTask(featureData, mean, right, product, 0, featureData.getNumRows()));
+		return new Matrix(product);
+	}
+
+	//Returns (featureData - mean)' x left, numFeatures x left[0].length.
+	private static Matrix multiplyTransposed(FeatureMatrix featureData, double[] mean, double[][] left, ForkJoinPool pool) {
+		return new Matrix(pool.invoke(new MultiplyTransposedTask(featureData, mean, left, 0, featureData.getNumRows())));
+	}
+
+	private static class MultiplyTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final FeatureMatrix featureData;
+		private final double[] mean;
+		private final double[][] right;
+		private final double[][] product;
+		private final int lo;
+		private final int hi;
+
+		MultiplyTask(FeatureMatrix featureData, double[] mean, double[][] right, double[][] product, int lo, int hi) {
+			this.featureData = featureData;
+			this.mean = mean;
+			this.right = right;
+			this.product = product;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > TASK_SIZE) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new MultiplyTask(featureData, mean, right, product, lo, mid), new MultiplyTask(featureData, mean, right, product, mid, hi));
+				return;
+			}
+
+			int numFeatures = mean.length;
+			int numColumns = right[0].length;
+			double[] data = featureData.getData();
+			for (int r = lo; r < hi; r++) {
+				int offset = featureData.getRowOffset(r);
+				double[] productRow = product[r];
+				for (int i = 0; i < numFeatures; i++) {
+					double value = data[offset + i] - mean[i];
+					double[] rightRow = right[i];
+					for (int j = 0; j < numColumns; j++) {
+						productRow[j] += value * rightRow[j];
+					}
+				}
+			}
+		}
+	}
+
+	//The split points only depend on the number of rows, so the sums are the same for any number of threads.
+	private static class MultiplyTransposedTask extends RecursiveTask<double[][]> {
+		private static final long serialVersionUID = 1L;
+
+		private final FeatureMatrix featureData;
+		private final double[] mean;
+		private final double[][] left;
+		private final int lo;
+		private final int hi;
+
+		MultiplyTransposedTask(FeatureMatrix featureData, double[] mean, double[][] left, int lo, int hi) {
+			this.featureData = featureData;
+			this.mean = mean;
+			this.left = left;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected double[][] compute() {
+			if (hi - lo > TASK_SIZE) {
+				int mid = (lo + hi) >>> 1;
+				MultiplyTransposedTask leftTask = new MultiplyTransposedTask(featureData, mean, left, lo, mid);
+				MultiplyTransposedTask rightTask = new MultiplyTransposedTask(featureData, mean, left, mid, hi);
+				leftTask.fork();
+				double[][] rightProduct = rightTask.compute();
+				double[][] product = leftTask.join();
+				for (int i = 0; i < product.length; i++) {
+					for (int j = 0; j < product[i].length; j++) {
+						product[i][j] += rightProduct[i][j];
+					}
+				}
+				return product;
+			}
+
+			int numFeatures = mean.length;
+			int numColumns = left[0].length;
+			double[] data = featureData.getData();
+			double[][] product = new double[numFeatures][numColumns];
+			for (int r = lo; r < hi; r++) {
+				int offset = featureData.getRowOffset(r);
+				double[] leftRow = left[r];
+				for (int i = 0; i < numFeatures; i++) {
+					double value = data[offset + i] - mean[i];
+					double[] productRow = product[i];
+					for (int j = 0; j < numColumns; j++) {
+						productRow[j] += value * leftRow[j];
+					}
+				}
+			}
+			return product;
+		}
+	}
+
+	public static void main(String[] args) {
+		String featureFilePath = args.length > 0 ? args[0] : "Data/TrainingData/training_data.csv";
+
+		try {
+			FeatureMatrix featureData = new FeatureMatrix();
+			PcaKnn.readFeatureFile(featureFilePath, featureData, new ClassLabels(new ClassDictionary()));
+			int numFeatures = featureData.getNumColumns();
+			int numComponents = args.length > 1 ? Integer.parseInt(args[1]) : Math.min(numFeatures, featureData.getNumRows());
+			ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+			long start = System.nanoTime();
+			PcaModel exact = new PcaModel(Utilities.getCovarianceAccumulator(featureData, numFeatures, pool).getCovarianceMatrix());
+			double exactMillis = (System.nanoTime() - start) / 1e6;
+
+			start = System.nanoTime();
+			PcaModel truncated = compute(featureData, getMean(featureData), numComponents, 0, pool);
+			double truncatedMillis = (System.nanoTime() - start) / 1e6;
+			pool.shutdown();
+
+			System.out.println(featureFilePath + ": " + featureData.getNumRows() + " rows, " + numFeatures + " features");
+			System.out.println(String.format("Exact: %.2f ms, truncated to %d components: %.2f ms", exactMillis, numComponents, truncatedMillis));
+			System.out.println("Component,Exact Eigenvalue,Truncated Eigenvalue,Relative Error,1 - |cos|");
+
+			boolean match = true;
+			for (int j = 0; j < numComponents; j++) {
+				double exactValue = exact.getEigenValue(j);
+				double truncatedValue = truncated.getEigenValue(j);
+				//eigenvectors are only defined up to sign
+				double[] exactVector = exact.getEigenObjects().get(j).getEigenVector();
+				double[] truncatedVector = truncated.getEigenObjects().get(j).getEigenVector();
+				double cosine = 0.0;
+				for (int i = 0; i < numFeatures; i++) {
+					cosine += exactVector[i] * truncatedVector[i];
+				}
+
+				double valueError = Math.abs(truncatedValue - exactValue) / Math.abs(exactValue);
+				double vectorError = 1.0 - Math.abs(cosine);
+				match &= valueError <= TOLERANCE && vectorError <= TOLERANCE;
+				System.out.println((j + 1) + "," + exactValue + "," + truncatedValue + "," + valueError + "," + vectorError);
+			}
+			System.out.println(match ? "Truncated PCA matches the exact decomposition." : "Truncated PCA differs from the exact decomposition by more than " + TOLERANCE + ".");
+		} catch (IOException e) {
+			System.err.println("Cannot read feature file. " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Classifies a live stream of sensor windows with a saved PCA + KNN model (see ModelTrainer).
+ * Each input line is one window: the model's features in order, comma separated, optionally preceded by an id that is
+ * copied to the output. Lines that are not windows (such as a CSV header) are reported on stderr and skipped.
+ * For each window one line is written to stdout: the classification, or id,classification.
+ *
+ * A reader thread parses lines into a bounded queue, so a slow classifier blocks the reader instead of buffering without
+ * limit. The classifier thread takes whatever windows are waiting, up to MAX_BATCH_SIZE, classifies them and flushes
+ * the output once per batch. The latency of each window, from being read to its classification being written, is
+ * recorded and its percentiles are reported on stderr every REPORT_INTERVAL_SECONDS and at the end of the stream.
+ *
+ * Usage: StreamClassifier modelFile [inputFile [-follow]]
+ * Reads stdin when no input file is given. -follow keeps reading as lines are appended to the file, like tail -f.
+ *
+ * @author Scott Weaver
+ */
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class StreamClassifier {
+	//windows waiting to be classified before the reader blocks
+	private static int QUEUE_CAPACITY = 4096;
+	private static int MAX_BATCH_SIZE = 256;
+	private static int REPORT_INTERVAL_SECONDS = 10;
+	//how long to wait for more data at the end of a followed file
+	private static int FOLLOW_POLL_MILLIS = 100;
+	//how long the classifier waits for a window before checking whether the reader has stopped
+	private static int QUEUE_POLL_MILLIS = 100;
+
+	private static class Window {
+		final String id;
+		final double[] values;
+		final long arrivalNanos;
+
+		Window(String id, double[] values, long arrivalNanos) {
+			this.id = id;
+			this.values = values;
+			this.arrivalNanos = arrivalNanos;
+		}
+	}
+
+	//marks the end of the stream in the queue
+	private static final Window END_OF_STREAM = new Window(null, null, 0);
+
+	private final PcaKnnModel model;
+	private final BlockingQueue<Window> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final LatencyHistogram intervalLatency = new LatencyHistogram();
+	private final LatencyHistogram totalLatency = new LatencyHistogram();
+	//set once the reader has queued its last window, in case END_OF_STREAM did not fit in the queue
+	private volatile boolean readerFinished;
+
+	public StreamClassifier(PcaKnnModel model) {
+		this.model = model;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: StreamClassifier modelFile [inputFile [-follow]]");
+			return;
+		}
+
+		try {
+			long start = System.nanoTime();
+			PcaKnnModel model = PcaKnnModel.load(args[0]);
+			System.err.println("Loaded " + args[0] + " in " + (System.nanoTime() - start) / 1e6 + " ms");
+
+			InputStream input = args.length > 1 ? new FileInputStream(args[1]) : System.in;
+			boolean follow = args.length > 2 && args[2].equals("-follow");
+
+			PrintStream output = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+			new StreamClassifier(model).run(input, follow, output);
+			output.flush();
+		} catch (IOException e) {
+			System.err.println("Cannot classify stream. " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//Classifies every window read from input until the end of the stream, writing the classifications to output.
+	public void run(final InputStream input, final boolean follow, PrintStream output) throws InterruptedException {
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				//however the reader stops, the classifier must see the end of the stream
+				try {
+					readWindows(input, follow);
+				} catch (IOException e) {
+					System.err.println("Cannot read input stream. " + e.getMessage());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					readerFinished = true;
+					queue.offer(END_OF_STREAM);
+				}
+			}
+		}, "window-reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		classifyWindows(output);
+		reader.join();
+	}
+
+	private void classifyWindows(PrintStream output) throws InterruptedException {
+		TopKSelector selector = new TopKSelector(model.getK());
+		int[] numOccurances = new int[model.getTrainingClassification().getDictionary().size()];
+		ArrayList<Window> batch = new ArrayList<>(MAX_BATCH_SIZE);
+		long nextReport = System.nanoTime() + REPORT_INTERVAL_SECONDS * 1000000000L;
+
+		while (true) {
+			batch.clear();
+			Window first = queue.poll(QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				//END_OF_STREAM is only missing if the queue was full when the reader stopped
+				if (readerFinished && queue.isEmpty()) {
+					break;
+				}
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+			boolean endOfStream = false;
+			int numClassified = 0;
+			for (Window window : batch) {
+				if (window == END_OF_STREAM) {
+					endOfStream = true;
+					break;
+				}
+				String classification = model.classify(window.values, selector, numOccurances);
+				output.println(window.id == null ? classification : window.id + "," + classification);
+				numClassified++;
+			}
+			output.flush();
+
+			//a window's latency runs until its batch has been flushed
+			long flushedNanos = System.nanoTime();
+			for (int i = 0; i < numClassified; i++) {
+				intervalLatency.record(flushedNanos - batch.get(i).arrivalNanos);
+			}
+
+			if (endOfStream) {
+				break;
+			}
+			if (flushedNanos >= nextReport) {
+				System.err.println("Last " + REPORT_INTERVAL_SECONDS + "s window latency: " + intervalLatency.summary());
+				totalLatency.merge(intervalLatency);
+				intervalLatency.reset();
+				nextReport = flushedNanos + REPORT_INTERVAL_SECONDS * 1000000000L;
+			}
+		}
+
+		totalLatency.merge(intervalLatency);
+		intervalLatency.reset();
+		System.err.println("Total window latency: " + totalLatency.summary());
+	}
+
+	//Reads lines from input and queues each window. Blocks while the queue is full.
+	private void readWindows(InputStream input, boolean follow) throws IOException, InterruptedException {
+		int numFeatures = model.getNumFeatures();
+		byte[] buffer = new byte[1 << 16];
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		long lineNumber = 0;
+
+		while (true) {
+			int length = input.read(buffer);
+			if (length < 0) {
+				if (follow) {
+					Thread.sleep(FOLLOW_POLL_MILLIS);
+					continue;
+				}
+				if (line.size() > 0) {
+					lineNumber++;
+					queueWindow(line.toString("UTF-8"), numFeatures, lineNumber);
+				}
+				return;
+			}
+
+			for (int i = 0; i < length; i++) {
+				if (buffer[i] == '\n') {
+					lineNumber++;
+					queueWindow(line.toString("UTF-8"), numFeatures, lineNumber);
+					line.reset();
+				} else if (buffer[i] != '\r') {
+					line.write(buffer[i]);
+				}
+			}
+		}
+	}
+
+	private void queueWindow(String line, int numFeatures, long lineNumber) throws InterruptedException {
+		if (line.isEmpty()) {
+			return;
+		}
+		long arrivalNanos = System.nanoTime();
+
+		String[] cells = line.split(",");
+		int first = cells.length - numFeatures;
+		if (first != 0 && first != 1) {
+			System.err.println("Line " + lineNumber + ": expected " + numFeatures + " features, found " + cells.length + " values");
+			return;
+		}
+
+		double[] values = new double[numFeatures];
+		try {
+			for (int i = 0; i < numFeatures; i++) {
+				values[i] = Double.parseDouble(cells[first + i]);
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Line " + lineNumber + ": not a window: " + e.getMessage());
+			return;
+		}
+
+		queue.put(new Window(first == 1 ? cells[0] : null, values, arrivalNanos));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Generates feature data shaped like the files in Data: a classification column followed by numFeatures values in
+ * [0, 1] with 9 decimals, such as the averages and standard deviations of the sensor windows. Each class is a Gaussian cluster around
+ * its own center, so the data has structure for PCA to find and KNN to classify, and the classes can overlap.
+ * The class centers depend only on classSeed, so training and test sets that share it (but not rowSeed) are drawn
+ * from the same roads.
+ *
+ * Usage: SyntheticFeatureData outputFile numRows [numFeatures] [numClasses] [classSeed] [rowSeed]
+ * Writes a feature CSV file; FeatureFileConverter turns it into a binary feature file.
+ *
+ * @author Scott Weaver
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+public class SyntheticFeatureData {
+	//spread of the class centers around 0.5, and of the rows around their class center
+	private static double CENTER_SPREAD = 0.15;
+	private static double ROW_SPREAD = 0.08;
+	//values are rounded to this many decimals, like the files in Data
+	private static int NUM_DECIMALS = 9;
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: SyntheticFeatureData outputFile numRows [numFeatures] [numClasses] [classSeed] [rowSeed]");
+			return;
+		}
+
+		int numRows = Integer.parseInt(args[1]);
+		int numFeatures = args.length > 2 ? Integer.parseInt(args[2]) : 14;
+		int numClasses = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		long classSeed = args.length > 4 ? Long.parseLong(args[4]) : 0;
+		long rowSeed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+
+		FeatureMatrix featureData = new FeatureMatrix();
+		ClassLabels featureClassification = new ClassLabels(new ClassDictionary());
+		String columnHeaders = generate(numRows, numFeatures, numClasses, classSeed, rowSeed, featureData, featureClassification);
+		try {
+			writeCsv(args[0], columnHeaders, featureData, featureClassification);
+		} catch (IOException e) {
+			System.err.println("Cannot write feature file. " + e.getMessage());
+		}
+	}
+
+	//Appends numRows generated rows to featureData and their classes to featureClassification. Returns the header line.
+	public static String generate(int numRows, int numFeatures, int numClasses, long classSeed, long rowSeed, FeatureMatrix featureData, ClassLabels featureClassification) {
+		Random classRandom = new Random(classSeed);
+		double[][] centers = new double[numClasses][numFeatures];
+		//each class is more common than the next, like the paved and unpaved roads
+		double[] cumulativeWeight = new double[numClasses];
+		double totalWeight = 0.0;
+		for (int c = 0; c < numClasses; c++) {
+			for (int i = 0; i < numFeatures; i++) {
+				centers[c][i] = 0.5 + CENTER_SPREAD * classRandom.nextGaussian();
+			}
+			totalWeight += 1.0 / (c + 1);
+			cumulativeWeight[c] = totalWeight;
+		}
+
+		int[] classIds = new int[numClasses];
+		for (int c = 0; c < numClasses; c++) {
+			classIds[c] = featureClassification.getDictionary().getId("class_" + (c + 1));
+		}
+
+		double scale = Math.pow(10, NUM_DECIMALS);
+		Random rowRandom = new Random(rowSeed);
+		double[] row = new double[numFeatures];
+		for (int r = 0; r < numRows; r++) {
+			double pick = rowRandom.nextDouble() * totalWeight;
+			int c = 0;
+			while (c < numClasses - 1 && pick >= cumulativeWeight[c]) {
+				c++;
+			}
+			for (int i = 0; i < numFeatures; i++) {
+				double value = Math.min(1.0, Math.max(0.0, centers[c][i] + ROW_SPREAD * rowRandom.nextGaussian()));
+				row[i] = Math.round(value * scale) / scale;
+			}
+			featureData.addRow(row);
+			featureClassification.addId(classIds[c]);
+		}
+
+		StringBuilder columnHeaders = new StringBuilder("classification");
+		for (int i = 0; i < numFeatures; i++) {
+			columnHeaders.append(",feature_" + (i + 1));
+		}
+		return columnHeaders.toString();
+	}
+
+	public static void writeCsv(String featureFilePath, String columnHeaders, FeatureMatrix featureData, ClassLabels featureClassification) throws IOException {
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(featureFilePath)))) {
+			writer.println(columnHeaders);
+			StringBuilder line = new StringBuilder();
+			for (int r = 0; r < featureData.getNumRows(); r++) {
+				line.setLength(0);
+				line.append(featureClassification.getName(r));
+				int offset = featureData.getRowOffset(r);
+				for (int i = 0; i < featureData.getNumColumns(); i++) {
+					line.append(',').append(featureData.getData()[offset + i]);
+				}
+				writer.println(line);
+			}
+			if (writer.checkError()) {
+				throw new IOException("Error writing " + featureFilePath);
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Keeps the k nearest training points seen during a KNN scan.
+ * The candidates live in a bounded max-heap backed by primitive arrays, so a query does not allocate
+ * and the same selector can be reused for every test point.
+ * Ties on distance are broken by the smaller training index, which gives the same order as the stable
+ * sort used by Utilities.performKNN.
+ *
+ * @author Scott Weaver
+ */
+public class TopKSelector {
+	private final int k;
+	private final double[] heapDistance;
+	private final int[] heapIndex;
+	private int size;
+
+	public TopKSelector(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		this.k = k;
+		this.heapDistance = new double[k];
+		this.heapIndex = new int[k];
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	//Number of candidates currently held. Less than k only when fewer than k points were offered.
+	public int size() {
+		return size;
+	}
+
+	//After sort(), position 0 holds the nearest neighbor.
+	public int getIndex(int position) {
+		return heapIndex[position];
+	}
+
+	public double getDistance(int position) {
+		return heapDistance[position];
+	}
+
+	//Distance of the furthest kept candidate. Only meaningful before sort() is called and while size() > 0.
+	public double getFurthestDistance() {
+		return heapDistance[0];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public void offer(int index, double distance) {
+		if (size < k) {
+			heapDistance[size] = distance;
+			heapIndex[size] = index;
+			siftUp(size);
+			size++;
+		} else if (isFurther(heapDistance[0], heapIndex[0], distance, index)) {
+			//the new point is nearer than the furthest kept candidate, so it replaces the root
+			heapDistance[0] = distance;
+			heapIndex[0] = index;
+			siftDown(0, size);
+		}
+	}
+
+	//Heapsort the kept candidates in place so they are in ascending order of distance.
+	public void sort() {
+		for (int end = size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+	}
+
+	//True if candidate 1 ranks after candidate 2.
+	private static boolean isFurther(double distance1, int index1, double distance2, int index2) {
+		int cmp = Double.compare(distance1, distance2);
+		return cmp != 0 ? cmp > 0 : index1 > index2;
+	}
+
+	private void siftUp(int position) {
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (!isFurther(heapDistance[position], heapIndex[position], heapDistance[parent], heapIndex[parent])) {
+				break;
+			}
+			swap(position, parent);
+			position = parent;
+		}
+	}
+
+	private void siftDown(int position, int heapSize) {
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && isFurther(heapDistance[child + 1], heapIndex[child + 1], heapDistance[child], heapIndex[child])) {
+				child++;
+			}
+			if (!isFurther(heapDistance[child], heapIndex[child], heapDistance[position], heapIndex[position])) {
+				break;
+			}
+			swap(position, child);
+			position = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		double distance = heapDistance[i];
+		heapDistance[i] = heapDistance[j];
+		heapDistance[j] = distance;
+
+		int index = heapIndex[i];
+		heapIndex[i] = heapIndex[j];
+		heapIndex[j] = index;
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Shrinks a training set before KNN classification, so every query scans fewer points. Much of the road data is
+ * redundant: a long stretch of the same road gives many near-identical windows, and only the points near a class
+ * boundary decide a nearest neighbor vote. Three reductions are offered, and they can be chained:
+ *
+ *   enn      edited nearest neighbor (Wilson): removes every point that its ENN_K nearest other points vote into another
+ *            class. This drops noise and class overlap but keeps the interior of each class, so alone it shrinks little
+ *   cnn      condensed nearest neighbor (Hart): keeps a subset that classifies every training point correctly by 1-NN.
+ *            It starts from one point per class and adds each point the subset misclassifies, until a pass adds none
+ *   kmeans   per-class k-means prototypes: replaces the points of each class by at most PROTOTYPES_PER_CLASS cluster
+ *            centers (see IvfIndex.cluster). The prototypes are new points, not training rows
+ *
+ * "enn,cnn" is the usual chain: editing first removes the noisy points that CNN would otherwise have to keep.
+ * The points kept by enn and cnn stay in their training order, so ties are broken as with the full set. Every
+ * reduction is seeded, so it is repeatable.
+ *
+ * Usage: TrainingSetCondenser trainingFile testFile [methods ...] [-k k]
+ * Classifies the test file against the full training set and against each chain of methods (by default enn, cnn,
+ * enn,cnn and kmeans), and prints the size, the reduction, the accuracy and its change, and the queries per second.
+ *
+ * @author Scott Weaver
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class TrainingSetCondenser {
+	//neighbors that vote on each point in edited nearest neighbor
+	private static int ENN_K = 3;
+	//passes of condensed nearest neighbor over the training set; it usually converges in a few
+	private static int CNN_MAX_PASSES = 10;
+	//cluster centers kept per class by kmeans
+	private static int PROTOTYPES_PER_CLASS = 64;
+	private static long SEED = 0;
+	//every classifier runs untimed for WARM_UP_MILLIS before any is timed; they are then timed in turn for NUM_TIMING_ROUNDS
+	//rounds of ROUND_MILLIS each and their fastest round is reported (see BatchClassifier.measureQueriesPerSecond)
+	private static int WARM_UP_MILLIS = 200;
+	private static int NUM_TIMING_ROUNDS = 5;
+	private static int ROUND_MILLIS = 100;
+	private static String[] DEFAULT_METHODS = {"enn", "cnn", "enn,cnn", "kmeans"};
+
+	//A training set: one classification per row of data.
+	public static class TrainingSet {
+		public final FeatureMatrix data;
+		public final ClassLabels classification;
+
+		public TrainingSet(FeatureMatrix data, ClassLabels classification) {
+			this.data = data;
+			this.classification = classification;
+		}
+
+		public int size() {
+			return data.getNumRows();
+		}
+	}
+
+	//Applies the comma-separated methods (enn, cnn, kmeans) in order, e.g. "enn,cnn". Returns the reduced training set.
+	public static TrainingSet condense(String methods, TrainingSet trainingSet, ForkJoinPool pool) {
+		for (String method : methods.split(",")) {
+			method = method.trim();
+			Metrics.Stopwatch stopwatch = Metrics.start("condense");
+			if (method.equals("enn")) {
+				trainingSet = editNearestNeighbors(trainingSet, ENN_K, pool);
+			} else if (method.equals("cnn")) {
+				trainingSet = condenseNearestNeighbors(trainingSet, new Random(SEED));
+			} else if (method.equals("kmeans")) {
+				trainingSet = clusterPrototypes(trainingSet, PROTOTYPES_PER_CLASS, new Random(SEED));
+			} else {
+				throw new IllegalArgumentException("Unknown condensation method: " + method);
+			}
+			stopwatch.stop();
+		}
+		return trainingSet;
+	}
+
+	//Keeps the points that the majority of their k nearest other points agree with, voting with BatchClassifier.vote so
+	//ties are broken as in classification. All points are searched together by matrix multiplication (see MatrixDistanceIndex).
+	public static TrainingSet editNearestNeighbors(TrainingSet trainingSet, int k, ForkJoinPool pool) {
+		//one extra neighbor is searched, since every point is its own nearest neighbor
+		TopKSelector[] selectors = new MatrixDistanceIndex(trainingSet.data, pool).search(trainingSet.data, k + 1);
+
+		TopKSelector neighbors = new TopKSelector(k);
+		int[] numOccurances = new int[trainingSet.classification.getDictionary().size()];
+		BatchClassifier.Result result = new BatchClassifier.Result(trainingSet.size());
+		int[] kept = new int[trainingSet.size()];
+		int numKept = 0;
+		for (int i = 0; i < trainingSet.size(); i++) {
+			//the point itself is not always first, since a duplicate with a smaller index ranks ahead of it
+			neighbors.clear();
+			for (int j = 0; j < selectors[i].size(); j++) {
+				if (selectors[i].getIndex(j) != i) {
+					neighbors.offer(selectors[i].getIndex(j), selectors[i].getDistance(j));
+				}
+			}
+			neighbors.sort();
+
+			BatchClassifier.vote(neighbors, trainingSet.classification, numOccurances, result, i);
+			if (result.predictedClassification[i] == trainingSet.classification.getId(i)) {
+				kept[numKept++] = i;
+			}
+		}
+		return select(trainingSet, Arrays.copyOf(kept, numKept));
+	}
+
+	//Hart's condensed nearest neighbor. The points are visited in a shuffled order, so the subset does not depend on
+	//how the training file happens to be sorted.
+	public static TrainingSet condenseNearestNeighbors(TrainingSet trainingSet, Random random) {
+		int fullDataSize = trainingSet.size();
+		int numFeatures = trainingSet.data.getNumColumns();
+		double[] data = trainingSet.data.getData();
+
+		int[] order = new int[fullDataSize];
+		for (int i = 0; i < fullDataSize; i++) {
+			order[i] = i;
+		}
+		for (int i = fullDataSize - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+
+		//the subset, copied together so a search reads one contiguous block
+		double[] storeData = new double[fullDataSize * numFeatures];
+		int[] storeIds = new int[fullDataSize];
+		int[] kept = new int[fullDataSize];
+		int numKept = 0;
+		boolean[] isKept = new boolean[fullDataSize];
+
+		//the first point of each class in the visiting order starts the subset
+		boolean[] isSeen = new boolean[trainingSet.classification.getDictionary().size()];
+		for (int i : order) {
+			int id = trainingSet.classification.getId(i);
+			if (!isSeen[id]) {
+				isSeen[id] = true;
+				System.arraycopy(data, i * numFeatures, storeData, numKept * numFeatures, numFeatures);
+				storeIds[numKept] = id;
+				kept[numKept++] = i;
+				isKept[i] = true;
+			}
+		}
+
+		for (int pass = 0; pass < CNN_MAX_PASSES; pass++) {
+			int numAdded = 0;
+			for (int i : order) {
+				if (isKept[i]) {
+					continue;
+				}
+				int nearest = 0;
+				double nearestDistance = Double.POSITIVE_INFINITY;
+				for (int s = 0; s < numKept; s++) {
+					double distance = Utilities.calculateSquaredDistance(data, i * numFeatures, storeData, s * numFeatures, numFeatures);
+					if (distance < nearestDistance) {
+						nearestDistance = distance;
+						nearest = s;
+					}
+				}
+
+				int id = trainingSet.classification.getId(i);
+				if (storeIds[nearest] != id) {
+					System.arraycopy(data, i * numFeatures, storeData, numKept * numFeatures, numFeatures);
+					storeIds[numKept] = id;
+					kept[numKept++] = i;
+					isKept[i] = true;
+					numAdded++;
+				}
+			}
+			if (numAdded == 0) {
+				break;
+			}
+		}
+
+		kept = Arrays.copyOf(kept, numKept);
+		Arrays.sort(kept);
+		return select(trainingSet, kept);
+	}
+
+	//Replaces the points of each class by the centers of at most prototypesPerClass k-means clusters. A center that no
+	//point of its class is nearest to, such as a second center on a run of identical points, is dropped.
+	public static TrainingSet clusterPrototypes(TrainingSet trainingSet, int prototypesPerClass, Random random) {
+		int numFeatures = trainingSet.data.getNumColumns();
+		ClassDictionary dictionary = trainingSet.classification.getDictionary();
+
+		FeatureMatrix prototypeData = new FeatureMatrix();
+		ClassLabels prototypeClassification = new ClassLabels(dictionary);
+		for (int id = 0; id < dictionary.size(); id++) {
+			FeatureMatrix classData = new FeatureMatrix();
+			for (int i = 0; i < trainingSet.size(); i++) {
+				if (trainingSet.classification.getId(i) == id) {
+					classData.addRow(trainingSet.data.getRow(i));
+				}
+			}
+			if (classData.getNumRows() == 0) {
+				continue;
+			}
+
+			int numCenters = Math.min(prototypesPerClass, classData.getNumRows());
+			double[] centers = IvfIndex.cluster(classData, numCenters, random);
+			int[] clusterSize = new int[numCenters];
+			for (int i = 0; i < classData.getNumRows(); i++) {
+				clusterSize[IvfIndex.getNearestCenter(centers, numCenters, classData.getData(), classData.getRowOffset(i), numFeatures)]++;
+			}
+			for (int c = 0; c < numCenters; c++) {
+				if (clusterSize[c] > 0) {
+					prototypeData.addRow(Arrays.copyOfRange(centers, c * numFeatures, (c + 1) * numFeatures));
+					prototypeClassification.addId(id);
+				}
+			}
+		}
+		return new TrainingSet(prototypeData, prototypeClassification);
+	}
+
+	//The rows of trainingSet listed in rows, in that order.
+	private static TrainingSet select(TrainingSet trainingSet, int[] rows) {
+		int numFeatures = trainingSet.data.getNumColumns();
+		FeatureMatrix selectedData = new FeatureMatrix(rows.length, numFeatures);
+		ClassLabels selectedClassification = new ClassLabels(trainingSet.classification.getDictionary());
+		for (int r = 0; r < rows.length; r++) {
+			System.arraycopy(trainingSet.data.getData(), trainingSet.data.getRowOffset(rows[r]), selectedData.getData(), selectedData.getRowOffset(r), numFeatures);
+			selectedClassification.addId(trainingSet.classification.getId(rows[r]));
+		}
+		return new TrainingSet(selectedData, selectedClassification);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: TrainingSetCondenser trainingFile testFile [methods ...] [-k k]");
+			return;
+		}
+
+		int k = 1;
+		ArrayList<String> methods = new ArrayList<>();
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-k") && i + 1 < args.length) {
+				k = Integer.parseInt(args[++i]);
+			} else {
+				methods.add(args[i]);
+			}
+		}
+		if (methods.isEmpty()) {
+			methods.addAll(Arrays.asList(DEFAULT_METHODS));
+		}
+
+		ClassDictionary classDictionary = new ClassDictionary();
+		FeatureMatrix trainingData = new FeatureMatrix();
+		ClassLabels trainingClassification = new ClassLabels(classDictionary);
+		FeatureMatrix testData = new FeatureMatrix();
+		ClassLabels testClassification = new ClassLabels(classDictionary);
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			String trainingColumnHeaders = PcaKnn.readFeatureFile(args[0], trainingData, trainingClassification);
+			String testColumnHeaders = PcaKnn.readFeatureFile(args[1], testData, testClassification);
+			if (!trainingColumnHeaders.equals(testColumnHeaders)) {
+				System.err.println("Features inconsistent between Test File and Training File (mismatching headers).");
+				return;
+			}
+
+			TrainingSet fullSet = new TrainingSet(trainingData, trainingClassification);
+			int numTestData = testData.getNumRows();
+			System.out.println("Training Data: " + fullSet.size() + ", Test Data: " + numTestData + ", k = " + k);
+			System.out.println("Method,Training Points,Reduction,Accuracy,Accuracy Change,Condense (ms),Queries/s,Speedup");
+
+			//the full set is entry 0
+			int numSets = methods.size() + 1;
+			TrainingSet[] trainingSets = new TrainingSet[numSets];
+			double[] condenseMillis = new double[numSets];
+			trainingSets[0] = fullSet;
+			for (int m = 1; m < numSets; m++) {
+				long start = System.nanoTime();
+				trainingSets[m] = condense(methods.get(m - 1), fullSet, pool);
+				condenseMillis[m] = (System.nanoTime() - start) / 1e6;
+			}
+
+			//a brute force search costs in proportion to the size of its training set; all the searches are warmed up and
+			//timed together, so the one timed first does not pay for the JIT
+			BatchClassifier[] classifiers = new BatchClassifier[numSets];
+			double[] accuracy = new double[numSets];
+			for (int m = 0; m < numSets; m++) {
+				classifiers[m] = new BatchClassifier(new BruteForceIndex(trainingSets[m].data), trainingSets[m].classification, k, pool);
+				accuracy[m] = ((double) classifiers[m].classify(testData, testClassification).count) / numTestData;
+			}
+			double[] queriesPerSecond = BatchClassifier.measureQueriesPerSecond(classifiers, testData, testClassification, WARM_UP_MILLIS * 1000000L, NUM_TIMING_ROUNDS, ROUND_MILLIS * 1000000L);
+
+			System.out.println("full," + fullSet.size() + ",1.00," + String.format("%.4f", accuracy[0]) + ",+0.0000,0.00," + String.format("%.0f", queriesPerSecond[0]) + ",1.00");
+			for (int m = 1; m < numSets; m++) {
+				System.out.println("\"" + methods.get(m - 1) + "\"," + trainingSets[m].size() + "," + String.format("%.2f", ((double) fullSet.size()) / trainingSets[m].size()) + ","
+						+ String.format("%.4f,%+.4f,%.2f,%.0f,%.2f", accuracy[m], accuracy[m] - accuracy[0], condenseMillis[m], queriesPerSecond[m], queriesPerSecond[m] / queriesPerSecond[0]));
+			}
+		} catch (IOException e) {
+			System.err.println("Cannot condense training set. " + e.getMessage());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
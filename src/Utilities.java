@@ -2,26 +2,38 @@
  *
  * @author Scott Weaver
  */
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
 
 public class Utilities {
+	//final so the JIT can inline the kernel into the search loops
+	private static final DistanceKernel DISTANCE_KERNEL = DistanceKernel.getSelected();
 	
-	//Input:	fullData is a list of training data. Each array in the list contains all the features; for n features, the data is in n dimensions.
-	//Input:	testData is a single data point to classify agains the training data. The features should match up with fullData.
-	//Output:	Returns training data sorted by distance from test data. 
-	public static ArrayList<DistObj> performKNN(ArrayList<double[]> fullData, double[] testData) {
-        int fullDataSize = fullData.size();
+	//Input:	fullData is the training data. Each row contains all the features; for n features, the data is in n dimensions.
+	//Input:	testData[testOffset] to testData[testOffset + n - 1] is a single data point to classify agains the training data. The features should match up with fullData.
+	//Output:	Returns training data sorted by (squared) distance from test data. 
+	public static ArrayList<DistObj> performKNN(FeatureMatrix fullData, double[] testData, int testOffset) {
+        int fullDataSize = fullData.getNumRows();
+        int numFeatures = fullData.getNumColumns();
+        double[] data = fullData.getData();
 
-        ArrayList<DistObj> distObjects = new ArrayList<>();
+        ArrayList<DistObj> distObjects = new ArrayList<>(fullDataSize);
 
         for (int i = 0; i < fullDataSize; i++) {
-            double distance = calculateDistance(testData, fullData.get(i));
+            double distance = calculateSquaredDistance(testData, testOffset, data, i * numFeatures, numFeatures);
             DistObj dobj = new DistObj();
             dobj.index = i;
             dobj.distance = distance;
@@ -31,15 +43,27 @@ public class Utilities {
         sortDistObjs(distObjects);
         return distObjects;
 	}
-	
-	//Calculates Euclidean distance in n-dimensional space (n is the size of the arrays).
-    private static double calculateDistance(double[] array1, double[] array2) {
-        double Sum = 0.0;
-        for (int i = 0; i < array1.length; i++) {
-            Sum = Sum + Math.pow((array1[i] - array2[i]), 2.0);
-        }
-        return Math.sqrt(Sum);
-    }
+
+	//Input:	fullData and testData as above.
+	//Input:	selector holds the scratch buffers for the search and is cleared first, so one selector can be reused for every test point.
+	//Output:	selector contains the k nearest training points in the same order performKNN would list them.
+	public static void performKNN(FeatureMatrix fullData, double[] testData, int testOffset, TopKSelector selector) {
+		int fullDataSize = fullData.getNumRows();
+		int numFeatures = fullData.getNumColumns();
+		double[] data = fullData.getData();
+
+		selector.clear();
+		for (int i = 0; i < fullDataSize; i++) {
+			selector.offer(i, calculateSquaredDistance(testData, testOffset, data, i * numFeatures, numFeatures));
+		}
+		selector.sort();
+	}
+
+	//Calculates the squared Euclidean distance in n-dimensional space between the n values starting at offset1 of array1 and offset2 of array2.
+	//Squared distances rank neighbors the same as distances, so no sqrt is taken.
+	static double calculateSquaredDistance(double[] array1, int offset1, double[] array2, int offset2, int n) {
+		return DISTANCE_KERNEL.squaredDistance(array1, offset1, array2, offset2, n);
+	}
     
     //Returns training data sorted by distance from test data. 
     //Smaller distances correspond to a more similar classification.
@@ -52,34 +76,51 @@ public class Utilities {
         });
     }
     
-	public static double[][] getCovarianceMatrix(ArrayList<double[]> featureData, double[] dataAvg, int numFeatures) {
-
-    	// create a copy of featureData
-        ArrayList<double[]> featureDataAdjust = new ArrayList<>();
-        for (double[] src : featureData) {
-        	double[] dest = new double[numFeatures];
-        	System.arraycopy( src, 0, dest, 0, src.length );
-        	
-        	featureDataAdjust.add(dest);
-        }
-        
-        //creating data adjust
-        for (double dataAdjustComps[] : featureDataAdjust) {
-            for (int i = 0; i < numFeatures; i++) {
-                dataAdjustComps[i] -= dataAvg[i];
-            }
-        }
-        
-        double[][] covarianceMatrix = new double[numFeatures][numFeatures];
-
-        for (int i = 0; i < numFeatures; i++) {
-            for (int j = 0; j < numFeatures; j++) {
-                covarianceMatrix[i][j] = calculateCovariance(featureDataAdjust, i, j);
-            }
-        }
-        
-        return covarianceMatrix;
+	//Input:	featureData is the feature data, each row containing numFeatures features.
+	//Input:	pool runs the accumulation; the rows are split into ranges that are accumulated in parallel and merged.
+	//Output:	Returns the accumulated mean and covariance of the features. The data is read once and not copied.
+	public static CovarianceAccumulator getCovarianceAccumulator(FeatureMatrix featureData, int numFeatures, ForkJoinPool pool) {
+		Metrics.Stopwatch stopwatch = Metrics.start("covariance");
+		CovarianceAccumulator accumulator = pool.invoke(new CovarianceTask(featureData, numFeatures, 0, featureData.getNumRows()));
+		stopwatch.stop();
+		return accumulator;
+	}
+	
+	//The split points only depend on the number of rows, so the result is the same for any number of threads.
+	private static class CovarianceTask extends RecursiveTask<CovarianceAccumulator> {
+		private static final long serialVersionUID = 1L;
+		//rows accumulated by a single task
+		private static int TASK_SIZE = 16384;
+		
+		private final FeatureMatrix featureData;
+		private final int numFeatures;
+		private final int lo;
+		private final int hi;
+		
+		CovarianceTask(FeatureMatrix featureData, int numFeatures, int lo, int hi) {
+			this.featureData = featureData;
+			this.numFeatures = numFeatures;
+			this.lo = lo;
+			this.hi = hi;
+		}
 		
+		@Override
+		protected CovarianceAccumulator compute() {
+			if (hi - lo > TASK_SIZE) {
+				int mid = (lo + hi) >>> 1;
+				CovarianceTask left = new CovarianceTask(featureData, numFeatures, lo, mid);
+				CovarianceTask right = new CovarianceTask(featureData, numFeatures, mid, hi);
+				left.fork();
+				CovarianceAccumulator rightAccumulator = right.compute();
+				CovarianceAccumulator accumulator = left.join();
+				accumulator.merge(rightAccumulator);
+				return accumulator;
+			}
+			
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(numFeatures);
+			accumulator.addRows(featureData, lo, hi);
+			return accumulator;
+		}
 	}
 	
 	public static ArrayList<Double> getEigenvalueMatrix(double[][] covarianceMatrix, int numFeatures) {
@@ -108,60 +149,28 @@ public class Utilities {
         return eigenValuesList;
 	}
 	
-    public static ArrayList<double[]> calculatePCA(ArrayList<double[]> oldDataList, Matrix eigenVectors) {
-    	int oldDataSize = oldDataList.size();
-        int dataSize = oldDataList.get(0).length;
-        
-        double[][] oldData2dArray = new double[oldDataSize][dataSize];
-
-        int count = 0;
-        for (double dataLine[] : oldDataList) {
-            System.arraycopy(dataLine, 0, oldData2dArray[count], 0, dataSize);
-            count++;
-        }
-        
-        Matrix oldDataMatrix = new Matrix(oldData2dArray);
-        Matrix newDataMatrix = new Matrix(oldDataSize, dataSize);
-        
-        newDataMatrix = oldDataMatrix.times(eigenVectors);
-
-        double[][] newData2dArray = new double[oldDataSize][dataSize];
-        
-        newData2dArray = newDataMatrix.getArrayCopy();
-        ArrayList<double[]> newDataList = new ArrayList<>();
-
-        for (int i = 0; i < oldDataSize; i++) {
-            newDataList.add(newData2dArray[i]);
-        }
-        
-        return newDataList;
+    //Input:	oldData is the feature data, eigenVectors is numFeatures x numComponents with one principal component per column.
+    //Output:	Returns the data projected onto the principal components, one row per data point.
+    //The data is not centered; use a ProjectionEngine with the training mean to center and project in one pass.
+    public static FeatureMatrix calculatePCA(FeatureMatrix oldData, Matrix eigenVectors) {
+        return new ProjectionEngine(null, eigenVectors).project(oldData, ForkJoinPool.commonPool());
     }
 	
 	public static Matrix getEigenvectorMatrix(double[][] covarianceMatrix, int numFeatures, int numFeaturesReduced) {
 		
-        List<EigenObject> eigenObjList = performEigenOperations(covarianceMatrix, numFeatures);
-
-        double[][] eigenVector2dArray = new double[numFeatures][numFeaturesReduced];
-
-        int eigenObjectCount = 0;
-
-        for (EigenObject eigenObject : eigenObjList) {
-
-            double[] eigenVector = eigenObject.getEigenVector();
-
-            for (int i = 0; i < numFeatures && eigenObjectCount < numFeaturesReduced; i++) {
-                eigenVector2dArray[i][eigenObjectCount] = eigenVector[i];
-            }
-
-            eigenObjectCount++;
-        }
-        
-        Matrix eigenVectors = new Matrix(eigenVector2dArray);
-        
-        return eigenVectors;
+		//performs a full eigendecomposition; use a PcaModel directly when several component counts are needed
+		return new PcaModel(covarianceMatrix).getEigenvectorMatrix(numFeaturesReduced);
+	}
+	
+	//Input:	projectedData is data projected onto all principal components, most significant first.
+	//Output:	Returns the same data reduced to the first numComponents components, the same as projecting onto only those components.
+	public static FeatureMatrix truncateComponents(FeatureMatrix projectedData, int numComponents) {
+		return projectedData.truncateColumns(numComponents);
 	}
 	
-    private static List<EigenObject> performEigenOperations(double[][] covarianceMatrix, int dataSize) {
+    //Returns the eigenpairs of the covariance matrix sorted by descending eigenvalue.
+    static List<EigenObject> performEigenOperations(double[][] covarianceMatrix, int dataSize) {
+        Metrics.Stopwatch stopwatch = Metrics.start("eigendecomposition");
         Matrix evdMatrix = new Matrix(covarianceMatrix);
         EigenvalueDecomposition evd = new EigenvalueDecomposition(evdMatrix);
 
@@ -173,9 +182,15 @@ public class Utilities {
         myEigenValues = evd.getRealEigenvalues();
         myEigenVectorMatrix = evd.getV();
         
+        //the eigenvectors are the columns of V
+        double[][] eigenVectorArray = myEigenVectorMatrix.getArray();
         List<EigenObject> eigenObjList = new ArrayList<>(dataSize);
         for (int i = 0; i < dataSize; i++) {
-            eigenObjList.add(new EigenObject(myEigenValues[i], myEigenVectorMatrix.getArray()[i]));
+            double[] eigenVector = new double[dataSize];
+            for (int j = 0; j < dataSize; j++) {
+                eigenVector[j] = eigenVectorArray[j][i];
+            }
+            eigenObjList.add(new EigenObject(myEigenValues[i], eigenVector));
         }
 
         Collections.sort(eigenObjList, new Comparator<EigenObject>() {
@@ -187,16 +202,21 @@ public class Utilities {
             }
         });
 
+        stopwatch.stop();
         return eigenObjList;
     }
 	
-    private static double calculateCovariance(ArrayList<double[]> fullDataAdjust, int i, int j) {
-
-        double metricAdjustProdTotal = 0.0;  // the final numerator in the covariance formula i.e Summation[(Xi-Xmean)*(Yi-Ymean)]
-
-        for (double dataAdjustComps[] : fullDataAdjust) {
-            metricAdjustProdTotal += dataAdjustComps[i] * dataAdjustComps[j];
-        }
-        return metricAdjustProdTotal / (fullDataAdjust.size() - 1);
-    }
+	//Replaces the file at filePath with contents. The contents are written to a uniquely named file in the same directory
+	//and moved over it atomically, so a reader never sees half a file, concurrent writers do not share a temporary file,
+	//and a failed write leaves the old file in place.
+	public static void writeFileAtomically(String filePath, String contents) throws IOException {
+		Path file = Paths.get(filePath).toAbsolutePath();
+		Path temporary = Files.createTempFile(file.getParent(), file.getFileName() + ".", ".tmp");
+		try {
+			Files.write(temporary, contents.getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
 }